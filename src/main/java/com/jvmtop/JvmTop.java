@@ -17,7 +17,16 @@
  */
 package com.jvmtop;
 
+import com.jvmtop.profiler.CPUSampler;
+import com.jvmtop.profiler.PackageFilter;
+import com.jvmtop.profiler.ProfileBackend;
+import com.jvmtop.profiler.ProfileExporter;
+import com.jvmtop.profiler.ProfileMode;
+import com.jvmtop.profiler.RollingProfiler;
+import com.jvmtop.profiler.Rollup;
+import com.jvmtop.profiler.ThreadSelector;
 import com.jvmtop.view.ConsoleView;
+import com.jvmtop.view.ProfileDiffView;
 import com.jvmtop.view.VMDetailView;
 import com.jvmtop.view.VMOverviewView;
 import com.jvmtop.view.VMProfileView;
@@ -25,13 +34,16 @@ import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
@@ -89,6 +101,99 @@ public class JvmTop {
     parser.accepts("threadnamewidth",
         "sets displayed thread name length in detail mode (defaults to 30)")
         .withRequiredArg().ofType(Integer.class);
+    parser.accepts("poll-threads",
+        "sets the number of jvms which are polled in parallel in overview mode (defaults to 8)")
+        .withRequiredArg().ofType(Integer.class);
+    parser.accepts("poll-timeout",
+        "sets the time in seconds a jvm has to respond to a poll before its last values are shown as stale (defaults to 1.0)")
+        .withRequiredArg().ofType(Double.class);
+    parser.accepts("attach-threads",
+        "sets the number of jvms which are attached to in parallel in overview mode (defaults to 2)")
+        .withRequiredArg().ofType(Integer.class);
+    parser.accepts("perfdata",
+        "overview mode reads the hsperfdata files of the jvms instead of attaching to them (no CPU and deadlock information)");
+    parser.accepts("deadlock-interval",
+        "sets the time in seconds between two deadlock detections of a jvm (defaults to 10.0)")
+        .withRequiredArg().ofType(Double.class);
+    parser.accepts("profile-interval",
+        "sets the time in milliseconds between two samples in profile mode (defaults to 100)")
+        .withRequiredArg().ofType(Integer.class);
+    parser.accepts("profile-jitter",
+        "shifts each sample in profile mode by a random offset of up to +/- the given milliseconds (defaults to 0)")
+        .withRequiredArg().ofType(Integer.class);
+    parser.accepts("profile-mode",
+        "sets what is profiled: cpu (CPU time of running threads, default), wall (all threads), blocked or waiting threads")
+        .withRequiredArg().ofType(String.class);
+    parser.accepts("profile-backend",
+        "sets how stacks are fetched: jmx (default) or attach (thread dumps like jstack, without loading the JMX agent)")
+        .withRequiredArg().ofType(String.class);
+    parser.accepts("profile-window",
+        "orders methods in profile mode by their exponentially decaying share of the given number of seconds, e.g. 30")
+        .withRequiredArg().ofType(Double.class);
+    parser.accepts("profile-topk",
+        "tracks only the given number of heaviest methods in profile mode, with a fixed memory budget (no stacks, tree, window or exports)")
+        .withRequiredArg().ofType(Integer.class);
+    parser.accepts("profile-threads",
+        "profiles only threads whose names match the given regular expression (can be repeated)")
+        .withRequiredArg().ofType(String.class);
+    parser.accepts("profile-exclude-threads",
+        "does not profile threads whose names match the given regular expression (can be repeated)")
+        .withRequiredArg().ofType(String.class);
+    parser.accepts("max-depth",
+        "fetches only the given number of innermost frames per stack in profile mode")
+        .withRequiredArg().ofType(Integer.class);
+    parser.accepts("profile-lines",
+        "shows the hottest source lines below each method in profile mode (not with tree or rollup)");
+    parser.accepts("profile-rollup",
+        "shows the CPU time summed up per class or package in profile mode (class|package)")
+        .withRequiredArg().ofType(String.class);
+    parser.accepts("profile-rollup-depth",
+        "sets the number of package name components of the package rollup (defaults to 3)")
+        .withRequiredArg().ofType(Integer.class);
+    parser.accepts("profile-drilldown",
+        "shows only classes or packages of the rollup starting with the given prefix, e.g. com.acme.")
+        .withRequiredArg().ofType(String.class);
+    parser.accepts("profile-tree",
+        "shows the hottest call paths with their total and self CPU time in profile mode");
+    parser.accepts("profile-folded",
+        "writes the folded stacks (for flame graph tools) of profile mode to the given file on exit")
+        .withRequiredArg().ofType(File.class);
+    parser.accepts("profile-folded-stream",
+        "appends the folded stacks to the profile-folded file at each iteration instead of on exit");
+    parser.accepts("profile-flamegraph",
+        "writes an interactive HTML flame graph of profile mode to the given file on exit")
+        .withRequiredArg().ofType(File.class);
+    parser.accepts("profile-include",
+        "comma-separated class name prefixes which are profiled, overriding shorter exclude prefixes")
+        .withRequiredArg().ofType(String.class).withValuesSeparatedBy(',');
+    parser.accepts("profile-exclude",
+        "comma-separated class name prefixes which are filtered in profile mode, in addition to the defaults")
+        .withRequiredArg().ofType(String.class).withValuesSeparatedBy(',');
+    parser.accepts("profile-filter-file",
+        "reads include (+prefix) and exclude (-prefix or prefix) rules from the given file, one per line")
+        .withRequiredArg().ofType(File.class);
+    parser.accepts("profile-no-default-excludes",
+        "does not filter the common 3rd-party library packages (java., org.apache., ...) in profile mode");
+    parser.accepts("profile-save",
+        "saves the profile of profile mode to the given file on exit, to be compared with --profile-diff")
+        .withRequiredArg().ofType(File.class);
+    parser.accepts("profile-diff",
+        "compares two saved profiles (before,after) and shows the methods and stacks with the biggest regressions")
+        .withRequiredArg().ofType(File.class).withValuesSeparatedBy(',');
+    parser.accepts("profile-rolling",
+        "profiles the jvm headless, writing a compressed profile per interval into the given directory (see --profile-diff)")
+        .withRequiredArg().ofType(File.class);
+    parser.accepts("profile-rolling-interval",
+        "sets the time in seconds covered by each file of profile-rolling (defaults to 60)")
+        .withRequiredArg().ofType(Double.class);
+    parser.accepts("profile-rolling-max-size",
+        "sets the maximum size in MB of the files of profile-rolling, the oldest are deleted first (defaults to 100)")
+        .withRequiredArg().ofType(Integer.class);
+    parser.accepts("profile-pprof",
+        "writes the profile of profile mode in the gzipped pprof format to the given file on exit")
+        .withRequiredArg().ofType(File.class);
+    parser.accepts("deadlock-detail-only",
+        "detects deadlocks in detail mode only, the DL column of the overview stays empty");
 
     return parser;
   }
@@ -117,6 +222,18 @@ public class JvmTop {
     Integer threadlimit = null;
     boolean threadLimitEnabled = true;
     Integer threadNameWidth = null;
+    Integer pollThreads = null;
+    Double pollTimeout = null;
+    Integer attachThreads = null;
+    Double deadlockInterval = null;
+    Integer profileInterval = null;
+    Integer profileJitter = null;
+    ProfileMode profileModeOption = null;
+    ProfileBackend profileBackend = ProfileBackend.JMX;
+    Double profileWindow = null;
+    Integer profileTopK = null;
+    Integer maxDepth = null;
+    Rollup rollup = null;
 
     if (a.hasArgument("delay")) {
       delay = (Double) (a.valueOf("delay"));
@@ -160,17 +277,221 @@ public class JvmTop {
       threadNameWidth = (Integer) a.valueOf("threadnamewidth");
     }
 
+    if (a.hasArgument("poll-threads")) {
+      pollThreads = (Integer) a.valueOf("poll-threads");
+      if (pollThreads < 1) {
+        throw new IllegalArgumentException("poll-threads must be at least 1");
+      }
+    }
+
+    if (a.hasArgument("poll-timeout")) {
+      pollTimeout = (Double) a.valueOf("poll-timeout");
+      if (pollTimeout < 0.01d) {
+        throw new IllegalArgumentException("poll-timeout cannot be set below 0.01");
+      }
+    }
+
+    if (a.hasArgument("attach-threads")) {
+      attachThreads = (Integer) a.valueOf("attach-threads");
+      if (attachThreads < 1) {
+        throw new IllegalArgumentException("attach-threads must be at least 1");
+      }
+    }
+
+    if (a.hasArgument("deadlock-interval")) {
+      deadlockInterval = (Double) a.valueOf("deadlock-interval");
+      if (deadlockInterval < 0.1d) {
+        throw new IllegalArgumentException("deadlock-interval cannot be set below 0.1");
+      }
+    }
+
+    if (a.hasArgument("profile-mode")) {
+      profileModeOption = ProfileMode.parse((String) a.valueOf("profile-mode"));
+    }
+
+    if (a.hasArgument("profile-backend")) {
+      profileBackend = ProfileBackend.parse((String) a.valueOf("profile-backend"));
+    }
+
+    if (a.hasArgument("profile-window")) {
+      profileWindow = (Double) a.valueOf("profile-window");
+      if (profileWindow < 0.1d) {
+        throw new IllegalArgumentException("profile-window cannot be set below 0.1");
+      }
+    }
+
+    if (a.hasArgument("profile-topk")) {
+      profileTopK = (Integer) a.valueOf("profile-topk");
+      if (profileTopK < 1) {
+        throw new IllegalArgumentException("profile-topk must be at least 1");
+      }
+      for (String option : new String[] {"profile-tree", "profile-lines", "profile-window",
+          "profile-rollup", "profile-folded", "profile-flamegraph", "profile-pprof"}) {
+        if (a.has(option)) {
+          throw new IllegalArgumentException("profile-topk cannot be combined with " + option);
+        }
+      }
+    }
+
+    if (a.has("profile-lines")) {
+      for (String option : new String[] {"profile-tree", "profile-rollup"}) {
+        if (a.has(option)) {
+          throw new IllegalArgumentException("profile-lines cannot be combined with " + option);
+        }
+      }
+    }
+
+    if (a.hasArgument("profile-rollup")) {
+      int rollupDepth = 3;
+      if (a.hasArgument("profile-rollup-depth")) {
+        rollupDepth = (Integer) a.valueOf("profile-rollup-depth");
+        if (rollupDepth < 1) {
+          throw new IllegalArgumentException("profile-rollup-depth must be at least 1");
+        }
+      }
+      rollup = new Rollup(Rollup.Level.parse((String) a.valueOf("profile-rollup")), rollupDepth);
+    }
+
+    if (a.hasArgument("max-depth")) {
+      maxDepth = (Integer) a.valueOf("max-depth");
+      if (maxDepth < 1) {
+        throw new IllegalArgumentException("max-depth must be at least 1");
+      }
+    }
+
+    if (a.hasArgument("profile-interval")) {
+      profileInterval = (Integer) a.valueOf("profile-interval");
+      if (profileInterval < 1) {
+        throw new IllegalArgumentException("profile-interval must be at least 1");
+      }
+    }
+
+    if (a.hasArgument("profile-jitter")) {
+      profileJitter = (Integer) a.valueOf("profile-jitter");
+      if (profileJitter < 0) {
+        throw new IllegalArgumentException("profile-jitter cannot be negative");
+      }
+    }
+
+    if (a.has("profile-rolling")) {
+      if (pid == null) {
+        throw new IllegalArgumentException("profile-rolling requires a pid");
+      }
+      if (a.hasArgument("profile-rolling-interval")
+          && (Double) a.valueOf("profile-rolling-interval") < 1d) {
+        throw new IllegalArgumentException("profile-rolling-interval cannot be set below 1");
+      }
+      if (a.hasArgument("profile-rolling-max-size")
+          && (Integer) a.valueOf("profile-rolling-max-size") < 1) {
+        throw new IllegalArgumentException("profile-rolling-max-size must be at least 1");
+      }
+    }
+
     if (sysInfoOption) {
       outputSystemProps();
+    } else if (a.has("profile-diff")) {
+      List<?> profileFiles = a.valuesOf("profile-diff");
+      if (profileFiles.size() != 2) {
+        throw new IllegalArgumentException("profile-diff needs two files: before,after");
+      }
+      JvmTop jvmTop = new JvmTop();
+      jvmTop.setMaxIterations(1);
+      jvmTop.run(new ProfileDiffView((File) profileFiles.get(0), (File) profileFiles.get(1),
+          width));
     } else {
       JvmTop jvmTop = new JvmTop();
       jvmTop.setDelay(delay);
       jvmTop.setMaxIterations(iterations);
       if (pid == null) {
-        jvmTop.run(new VMOverviewView(width));
+        VMOverviewView vmOverviewView = new VMOverviewView(width);
+        if (pollThreads != null) {
+          vmOverviewView.setPollThreads(pollThreads);
+        }
+        if (pollTimeout != null) {
+          vmOverviewView.setPollTimeoutMillis((long) (pollTimeout * 1000));
+        }
+        if (attachThreads != null) {
+          vmOverviewView.setAttachThreads(attachThreads);
+        }
+        vmOverviewView.setPerfDataMode(a.has("perfdata"));
+        vmOverviewView.setDeadlockDetection(!a.has("deadlock-detail-only"));
+        if (deadlockInterval != null) {
+          vmOverviewView.setDeadlockIntervalMillis((long) (deadlockInterval * 1000));
+        }
+        jvmTop.run(vmOverviewView);
       } else {
-        if (profileMode) {
-          jvmTop.run(new VMProfileView(pid, width));
+        if (a.has("profile-rolling")) {
+          RollingProfiler rollingProfiler =
+              new RollingProfiler(pid, (File) a.valueOf("profile-rolling"), profileBackend);
+          if (a.hasArgument("profile-rolling-interval")) {
+            rollingProfiler.setIntervalMillis(
+                (long) ((Double) a.valueOf("profile-rolling-interval") * 1000));
+          }
+          if (a.hasArgument("profile-rolling-max-size")) {
+            rollingProfiler.setMaxDirectoryBytes(
+                (Integer) a.valueOf("profile-rolling-max-size") * 1024L * 1024L);
+          }
+          if (profileInterval != null) {
+            rollingProfiler.setSampleIntervalMillis(profileInterval);
+          }
+          if (profileJitter != null) {
+            rollingProfiler.setSampleJitterMillis(profileJitter);
+          }
+          CPUSampler cpuSampler = rollingProfiler.getCpuSampler();
+          if (profileModeOption != null) {
+            cpuSampler.setProfileMode(profileModeOption);
+          }
+          if (profileTopK != null) {
+            cpuSampler.setTopK(profileTopK);
+          }
+          cpuSampler.setThreadSelector(createThreadSelector(a));
+          if (maxDepth != null) {
+            cpuSampler.setMaxDepth(maxDepth);
+          }
+          cpuSampler.setPackageFilter(createPackageFilter(a));
+          rollingProfiler.run(iterations);
+        } else if (profileMode) {
+          VMProfileView vmProfileView = new VMProfileView(pid, width, profileBackend);
+          if (profileInterval != null) {
+            vmProfileView.setSampleIntervalMillis(profileInterval);
+          }
+          if (profileJitter != null) {
+            vmProfileView.setSampleJitterMillis(profileJitter);
+          }
+          vmProfileView.setCallTreeMode(a.has("profile-tree"));
+          vmProfileView.setLineMode(a.has("profile-lines"));
+          if (profileModeOption != null) {
+            vmProfileView.setProfileMode(profileModeOption);
+          }
+          if (profileWindow != null) {
+            vmProfileView.setWindowMillis((long) (profileWindow * 1000));
+          }
+          if (profileTopK != null) {
+            vmProfileView.setTopK(profileTopK);
+          }
+          vmProfileView.setThreadSelector(createThreadSelector(a));
+          if (maxDepth != null) {
+            vmProfileView.setMaxDepth(maxDepth);
+          }
+          if (rollup != null) {
+            vmProfileView.setRollup(rollup, (String) a.valueOf("profile-drilldown"));
+          }
+          vmProfileView.setPackageFilter(createPackageFilter(a));
+          ProfileExporter profileExporter = vmProfileView.getProfileExporter();
+          if (a.hasArgument("profile-folded")) {
+            profileExporter.setFoldedStacksFile((File) a.valueOf("profile-folded"));
+          }
+          profileExporter.setStreamFoldedStacks(a.has("profile-folded-stream"));
+          if (a.hasArgument("profile-flamegraph")) {
+            profileExporter.setFlameGraphFile((File) a.valueOf("profile-flamegraph"));
+          }
+          if (a.hasArgument("profile-save")) {
+            profileExporter.setSavedProfileFile((File) a.valueOf("profile-save"));
+          }
+          if (a.hasArgument("profile-pprof")) {
+            profileExporter.setPprofFile((File) a.valueOf("profile-pprof"));
+          }
+          jvmTop.run(vmProfileView);
         } else {
           VMDetailView vmDetailView = new VMDetailView(pid, width);
           vmDetailView.setDisplayedThreadLimit(threadLimitEnabled);
@@ -180,6 +501,12 @@ public class JvmTop {
           if (threadNameWidth != null) {
             vmDetailView.setThreadNameDisplayWidth(threadNameWidth);
           }
+          if (pollTimeout != null) {
+            vmDetailView.setPollTimeoutMillis((long) (pollTimeout * 1000));
+          }
+          if (deadlockInterval != null) {
+            vmDetailView.setDeadlockIntervalMillis((long) (deadlockInterval * 1000));
+          }
           jvmTop.run(vmDetailView);
 
         }
@@ -220,6 +547,41 @@ public class JvmTop {
     consoleHandler.setLevel(java.util.logging.Level.FINEST);
   }
 
+  /**
+   * Creates the package filter of profile mode from the include / exclude options.
+   */
+  private static PackageFilter createPackageFilter(OptionSet a) throws IOException {
+    PackageFilter packageFilter = a.has("profile-no-default-excludes")
+        ? new PackageFilter() : PackageFilter.createDefault();
+    for (Object prefix : a.valuesOf("profile-exclude")) {
+      packageFilter.addExclude((String) prefix);
+    }
+    if (a.hasArgument("profile-filter-file")) {
+      packageFilter.load((File) a.valueOf("profile-filter-file"));
+    }
+    for (Object prefix : a.valuesOf("profile-include")) {
+      packageFilter.addInclude((String) prefix);
+    }
+    return packageFilter;
+  }
+
+  /**
+   * Creates the thread selector of profile mode, null if all threads are profiled.
+   */
+  private static ThreadSelector createThreadSelector(OptionSet a) {
+    if (!a.has("profile-threads") && !a.has("profile-exclude-threads")) {
+      return null;
+    }
+    ThreadSelector threadSelector = new ThreadSelector();
+    for (Object regex : a.valuesOf("profile-threads")) {
+      threadSelector.addInclude((String) regex);
+    }
+    for (Object regex : a.valuesOf("profile-exclude-threads")) {
+      threadSelector.addExclude((String) regex);
+    }
+    return threadSelector;
+  }
+
   private static void outputSystemProps() {
     for (Object key : System.getProperties().keySet()) {
       System.out.println(key + "=" + System.getProperty(key + ""));
@@ -0,0 +1,108 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.monitor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the deadlock detection of monitored jvms in the background, on its own (slower) schedule.
+ *
+ * Finding deadlocked threads has to inspect all threads of the target jvm
+ * and may pause it noticeably if it runs thousands of threads,
+ * so it is not done as part of the regular update.
+ * The result is cached in the VMInfo, see VMInfo.hasDeadlockThreads().
+ *
+ * The schedule only dispatches the checks to a bounded pool of worker threads.
+ * A check which is still running (e.g. a hung jvm) is not started again for its jvm,
+ * so a hung jvm occupies a single worker and does not stop the detection of the other jvms.
+ */
+public class DeadlockDetector {
+
+  public static final long DEFAULT_INTERVAL_MILLIS = 10000;
+
+  public static final int DEFAULT_CONCURRENCY = 4;
+
+  private final long intervalMillis;
+  private final ScheduledExecutorService executor;
+  private final ExecutorService workers;
+  private final Map<VMInfo, ScheduledFuture<?>> watchedVMs = new ConcurrentHashMap<>();
+  private final Map<VMInfo, Future<?>> runningChecks = new ConcurrentHashMap<>();
+
+  public DeadlockDetector(long intervalMillis) {
+    super();
+    if (intervalMillis <= 0) {
+      throw new IllegalArgumentException("Deadlock detection interval must be positive");
+    }
+    this.intervalMillis = intervalMillis;
+    executor = Executors.newSingleThreadScheduledExecutor(
+        new DaemonThreadFactory("jvmtop-deadlock"));
+    workers = Executors.newFixedThreadPool(DEFAULT_CONCURRENCY,
+        new DaemonThreadFactory("jvmtop-deadlock-worker"));
+  }
+
+  /**
+   * Starts the periodic deadlock detection of the given jvm, beginning immediately.
+   *
+   * @param vmInfo
+   */
+  public void watch(final VMInfo vmInfo) {
+    if (watchedVMs.containsKey(vmInfo)) {
+      return;
+    }
+    watchedVMs.put(vmInfo, executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        if (vmInfo.getState() == VMInfoState.DETACHED) {
+          unwatch(vmInfo);
+          return;
+        }
+        Future<?> running = runningChecks.get(vmInfo);
+        if (running != null && !running.isDone()) {
+          // the previous check still hangs, skip this one
+          return;
+        }
+        runningChecks.put(vmInfo, workers.submit(new Runnable() {
+          @Override
+          public void run() {
+            vmInfo.detectDeadlocks();
+          }
+        }));
+      }
+    }, 0, intervalMillis, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Stops the deadlock detection of the given jvm.
+   *
+   * @param vmInfo
+   */
+  public void unwatch(VMInfo vmInfo) {
+    ScheduledFuture<?> future = watchedVMs.remove(vmInfo);
+    if (future != null) {
+      future.cancel(false);
+    }
+    runningChecks.remove(vmInfo);
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.monitor;
+
+import com.jvmtop.openjdk.tools.LocalVirtualMachine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Attaches to newly discovered jvms in the background.
+ *
+ * Attaching may load the management agent into the target jvm and open an RMI connection,
+ * which can take seconds. The number of concurrent attaches is capped,
+ * further jvms are queued until a worker becomes available.
+ */
+public class VMAttachPipeline {
+
+  public static final int DEFAULT_CONCURRENCY = 2;
+
+  private final ExecutorService executor;
+  private final Queue<VMInfo> attachedVMs = new ConcurrentLinkedQueue<>();
+
+  public VMAttachPipeline(int concurrency) {
+    super();
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("Attach concurrency must be at least 1");
+    }
+    executor = Executors.newFixedThreadPool(concurrency,
+        new DaemonThreadFactory("jvmtop-attach"));
+  }
+
+  /**
+   * Schedules the attach to the given jvm.
+   *
+   * @param localvm
+   * @return a placeholder VMInfo in the ATTACHING state
+   */
+  public VMInfo submit(final LocalVirtualMachine localvm) {
+    final int vmid = localvm.vmid();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        attachedVMs.add(VMInfo.processNewVM(localvm, vmid));
+      }
+    });
+    return VMInfo.createAttachingVM(vmid, localvm);
+  }
+
+  /**
+   * Schedules another attach to a jvm which was not attachable when it was discovered.
+   * Its attach mechanism is probed again first (see LocalVirtualMachine.isAttachRetryDue()).
+   *
+   * @param localvm
+   * @return a placeholder VMInfo in the ATTACHING state
+   */
+  public VMInfo resubmit(final LocalVirtualMachine localvm) {
+    final int vmid = localvm.vmid();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        attachedVMs.add(VMInfo.processNewVM(LocalVirtualMachine.reprobe(localvm), vmid));
+      }
+    });
+    return VMInfo.createAttachingVM(vmid, localvm);
+  }
+
+  /**
+   * Returns (and removes) all VMInfo objects whose attach has finished since the last call,
+   * regardless if the attach was successful or not.
+   *
+   * @return
+   */
+  public List<VMInfo> drainAttachedVMs() {
+    List<VMInfo> result = new ArrayList<>();
+    VMInfo vmInfo;
+    while ((vmInfo = attachedVMs.poll()) != null) {
+      result.add(vmInfo);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.monitor;
+
+import com.jvmtop.openjdk.tools.LocalVirtualMachine;
+import com.jvmtop.perfdata.PerfDataBuffer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Discovers starting and terminating jvms.
+ *
+ * Instead of listing (and probing) all jvms on every iteration,
+ * the hsperfdata directories are watched for created and deleted perfdata files.
+ * A full scan (via LocalVirtualMachine) is only done initially and then
+ * as a slow fallback, e.g. for jvms running without perfdata
+ * or if the watch service is not available at all.
+ *
+ * Not thread-safe, poll() is supposed to be called by the rendering thread only.
+ */
+public class VMDiscoveryService {
+
+  /**
+   * Receives discovery events
+   */
+  public interface Listener {
+    void vmAppeared(LocalVirtualMachine localvm);
+
+    void vmDisappeared(int vmid);
+  }
+
+  public static final long DEFAULT_FULL_SCAN_INTERVAL_MILLIS = 30000;
+
+  private final long fullScanIntervalMillis;
+  private final Map<Integer, LocalVirtualMachine> knownVMs = new HashMap<>();
+  private final Set<Integer> unresolvedVmids = new HashSet<>();
+  private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+  private final Path tmpDir = PerfDataBuffer.getTempDirectory().toPath();
+  private WatchService watchService;
+  private long lastFullScan = 0;
+  private boolean fullScanRequested = true;
+
+  public VMDiscoveryService() {
+    this(DEFAULT_FULL_SCAN_INTERVAL_MILLIS);
+  }
+
+  public VMDiscoveryService(long fullScanIntervalMillis) {
+    super();
+    this.fullScanIntervalMillis = fullScanIntervalMillis;
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+      watch(tmpDir);
+      try (DirectoryStream<Path> dirs = Files.newDirectoryStream(tmpDir,
+          PerfDataBuffer.PERFDATA_DIR_PREFIX + "*")) {
+        for (Path dir : dirs) {
+          watchNewDir(dir);
+        }
+      }
+    } catch (IOException | UnsupportedOperationException e) {
+      Logger.getLogger("jvmtop").log(Level.FINE,
+          "perfdata directories cannot be watched, falling back to full scans", e);
+      watchService = null;
+    }
+  }
+
+  /**
+   * Dispatches all discovery events since the last call to the given listener.
+   *
+   * @param listener
+   */
+  public void poll(Listener listener) {
+    long now = System.currentTimeMillis();
+    if (watchService == null || fullScanRequested
+        || now - lastFullScan >= fullScanIntervalMillis) {
+      lastFullScan = now;
+      fullScanRequested = false;
+      fullScan(listener);
+      return;
+    }
+    processWatchEvents(listener);
+    resolveNewVMs(listener);
+  }
+
+  private void fullScan(Listener listener) {
+    Set<Integer> activeVmids = LocalVirtualMachine.getActiveVmIds();
+    for (Integer vmid : new ArrayList<>(knownVMs.keySet())) {
+      if (!activeVmids.contains(vmid)) {
+        knownVMs.remove(vmid);
+        listener.vmDisappeared(vmid);
+      }
+    }
+
+    Map<Integer, LocalVirtualMachine> machines =
+        LocalVirtualMachine.getNewVirtualMachines(knownVMs);
+    for (LocalVirtualMachine localvm : machines.values()) {
+      if (!knownVMs.containsKey(localvm.vmid())) {
+        knownVMs.put(localvm.vmid(), localvm);
+        listener.vmAppeared(localvm);
+      }
+    }
+    unresolvedVmids.clear();
+  }
+
+  private void processWatchEvents(Listener listener) {
+    WatchKey key;
+    while ((key = watchService.poll()) != null) {
+      Path dir = watchedDirs.get(key);
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          // events got lost, rely on the next full scan
+          fullScanRequested = true;
+          continue;
+        }
+        if (dir == null) {
+          continue;
+        }
+        Path path = dir.resolve((Path) event.context());
+        if (dir.equals(tmpDir)) {
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+              && path.getFileName().toString().startsWith(PerfDataBuffer.PERFDATA_DIR_PREFIX)) {
+            watchNewDir(path);
+          }
+          continue;
+        }
+        Integer vmid = toVmid(path);
+        if (vmid == null) {
+          continue;
+        }
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+          if (!knownVMs.containsKey(vmid)) {
+            unresolvedVmids.add(vmid);
+          }
+        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+          unresolvedVmids.remove(vmid);
+          if (knownVMs.remove(vmid) != null) {
+            listener.vmDisappeared(vmid);
+          }
+        }
+      }
+      if (!key.reset()) {
+        watchedDirs.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Tries to identify jvms whose perfdata files have been created recently.
+   * A perfdata file is created early during jvm startup, so this may need several attempts.
+   */
+  private void resolveNewVMs(Listener listener) {
+    for (Iterator<Integer> it = unresolvedVmids.iterator(); it.hasNext(); ) {
+      Integer vmid = it.next();
+      LocalVirtualMachine localvm = LocalVirtualMachine.getMonitoredVirtualMachine(vmid);
+      if (localvm != null) {
+        it.remove();
+        knownVMs.put(vmid, localvm);
+        listener.vmAppeared(localvm);
+      }
+    }
+  }
+
+  /**
+   * Watches a hsperfdata directory.
+   * Files created before the registration are picked up by the next poll.
+   */
+  private void watchNewDir(Path dir) {
+    try {
+      watch(dir);
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+        for (Path file : files) {
+          Integer vmid = toVmid(file);
+          if (vmid != null && !knownVMs.containsKey(vmid)) {
+            unresolvedVmids.add(vmid);
+          }
+        }
+      }
+    } catch (IOException e) {
+      Logger.getLogger("jvmtop").log(Level.FINE, "cannot watch " + dir, e);
+    }
+  }
+
+  private void watch(Path dir) throws IOException {
+    WatchKey key = dir.register(watchService,
+        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+    watchedDirs.put(key, dir);
+  }
+
+  private static Integer toVmid(Path file) {
+    try {
+      return Integer.valueOf(file.getFileName().toString());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
@@ -20,6 +20,7 @@ package com.jvmtop.monitor;
 import com.jvmtop.openjdk.tools.ConnectionState;
 import com.jvmtop.openjdk.tools.LocalVirtualMachine;
 import com.jvmtop.openjdk.tools.ProxyClient;
+import com.jvmtop.perfdata.PerfDataMetrics;
 import com.sun.tools.attach.AttachNotSupportedException;
 
 import java.io.IOException;
@@ -27,11 +28,10 @@ import java.lang.management.*;
 import java.rmi.ConnectException;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * VMInfo retrieves or updates the metrics for a specific remote jvm,
@@ -73,7 +73,6 @@ public class VMInfo {
   private ProxyClient proxyClient = null;
   private OperatingSystemMXBean osBean;
   private RuntimeMXBean runtimeMXBean;
-  private Collection<java.lang.management.GarbageCollectorMXBean> gcMXBeans;
   private long lastGcTime;
   private long lastUpTime = -1;
   private long lastCPUTime = -1;
@@ -81,10 +80,12 @@ public class VMInfo {
   private double cpuLoad = 0.0;
   private double gcLoad = 0.0;
   private MemoryMXBean memoryMXBean;
-  private MemoryUsage heapMemoryUsage;
-  private MemoryUsage nonHeapMemoryUsage;
+  private long heapUsed_;
+  private long heapMax_;
+  private long nonHeapUsed_;
+  private long nonHeapMax_;
   private ThreadMXBean threadMXBean;
-  private VMInfoState state = VMInfoState.INIT;
+  private volatile VMInfoState state = VMInfoState.INIT;
   private String rawId_ = null;
   private LocalVirtualMachine localVm;
   public static final Comparator<VMInfo> USED_HEAP_COMPARATOR = new UsedHeapComparator();
@@ -92,14 +93,26 @@ public class VMInfo {
   private long deltaUptime;
   private long deltaCpuTime;
   private long deltaGcTime;
-  private int updateErrorCount_ = 0;
+  private volatile int updateErrorCount_ = 0;
   private long totalLoadedClassCount_;
   private ClassLoadingMXBean classLoadingMXBean_;
-  private boolean deadlocksDetected_ = false;
-  private String vmVersion_ = null;
-  private String osUser_;
+  private volatile boolean deadlocksDetected_ = false;
   private long threadCount_;
-  private Map<String, String> systemProperties;
+  private long peakThreadCount_;
+  private long totalStartedThreadCount_;
+  private long uptime_;
+  private volatile VMMetadata metadata_ = null;
+  private int metadataConnection_ = 0;
+  private PerfDataMetrics metadataPerfData_ = null;
+  private volatile long updateSubmitTime_ = 0;
+  private volatile long updateStartTime_ = 0;
+  private volatile long lastUpdateTime_ = 0;
+  private volatile PerfDataMetrics perfData_ = null;
+
+  /**
+   * Number of failed updates in a row after which a jvm is considered as detached
+   */
+  public static final int MAX_CONSECUTIVE_UPDATE_ERRORS = 10;
 
   /**
    * @param proxyClient
@@ -186,6 +199,29 @@ public class VMInfo {
 
   }
 
+  /**
+   * Creates a VMInfo which reads its metrics from the perfdata file of the given jvm,
+   * without attaching to it.
+   *
+   * @param localvm
+   * @param vmid
+   * @return the VMInfo, or null if the jvm does not provide a readable perfdata file
+   */
+  public static VMInfo openPerfDataVM(LocalVirtualMachine localvm, int vmid) {
+    PerfDataMetrics perfData;
+    try {
+      perfData = PerfDataMetrics.open(vmid);
+    } catch (IOException e) {
+      Logger.getLogger("jvmtop").log(Level.FINE,
+          "perfdata not available (PID=" + vmid + ")", e);
+      return null;
+    }
+    VMInfo vmInfo = createDeadVM(vmid, localvm, VMInfoState.ATTACHING);
+    vmInfo.perfData_ = perfData;
+    vmInfo.update();
+    return vmInfo;
+  }
+
   /**
    * Creates a dead VMInfo, representing a jvm which cannot be attached or other monitoring issues occurred.
    *
@@ -213,6 +249,18 @@ public class VMInfo {
     return vmInfo;
   }
 
+  /**
+   * Creates a placeholder VMInfo for a jvm which is currently being attached to.
+   * It will be replaced by the result of processNewVM() once the attach has finished.
+   *
+   * @param vmid
+   * @param localVm
+   * @return
+   */
+  public static VMInfo createAttachingVM(int vmid, LocalVirtualMachine localVm) {
+    return createDeadVM(vmid, localVm, VMInfoState.ATTACHING);
+  }
+
   /**
    * @return the state
    */
@@ -221,10 +269,20 @@ public class VMInfo {
   }
 
   /**
-   * Updates all jvm metrics to the most recent remote values
+   * Updates all jvm metrics to the most recent remote values.
+   *
+   * All remote values are fetched first and published afterwards at once,
+   * so readers always see a consistent snapshot - even while an update
+   * of a slow jvm is still in progress.
    */
   public void update() {
-    if (state == VMInfoState.ERROR_DURING_ATTACH
+    if (perfData_ != null) {
+      updateFromPerfData();
+      return;
+    }
+
+    if (state == VMInfoState.ATTACHING
+        || state == VMInfoState.ERROR_DURING_ATTACH
         || state == VMInfoState.DETACHED
         || state == VMInfoState.CONNECTION_REFUSED) {
       return;
@@ -235,50 +293,194 @@ public class VMInfo {
       return;
     }
 
+    updateStartTime_ = System.currentTimeMillis();
     try {
       proxyClient.flush();
 
       osBean = proxyClient.getSunOperatingSystemMXBean();
       runtimeMXBean = proxyClient.getRuntimeMXBean();
-      gcMXBeans = proxyClient.getGarbageCollectorMXBeans();
       classLoadingMXBean_ = proxyClient.getClassLoadingMXBean();
       memoryMXBean = proxyClient.getMemoryMXBean();
-      heapMemoryUsage = memoryMXBean.getHeapMemoryUsage();
-      nonHeapMemoryUsage = memoryMXBean.getNonHeapMemoryUsage();
       threadMXBean = proxyClient.getThreadMXBean();
 
-      //TODO: fetch jvm-constant data only once
-      systemProperties = runtimeMXBean.getSystemProperties();
-      vmVersion_ = extractShortVer();
-      osUser_ = systemProperties.get("user.name");
-      updateInternal();
+      MemoryUsage heapMemoryUsage = memoryMXBean.getHeapMemoryUsage();
+      MemoryUsage nonHeapMemoryUsage = memoryMXBean.getNonHeapMemoryUsage();
 
-      deadlocksDetected_ = threadMXBean.findDeadlockedThreads() != null
-          || threadMXBean.findMonitorDeadlockedThreads() != null;
+      // jvm-constant data is re-fetched only if the connection has been re-established
+      int connection = proxyClient.getConnectionCount();
+      VMMetadata metadata = metadata_;
+      if (metadata == null || connection != metadataConnection_) {
+        metadata = VMMetadata.fetch(proxyClient);
+      }
 
+      long uptime = runtimeMXBean.getUptime();
+      long cpuTime = proxyClient.getProcessCpuTime();
+      //long cpuTime = osBean.getProcessCpuTime();
+      long gcTime = sumGCTimes(metadata.getGcMXBeans());
+      long gcCount = sumGCCount(metadata.getGcMXBeans());
+      long totalLoadedClassCount = classLoadingMXBean_.getTotalLoadedClassCount();
+      long threadCount = threadMXBean.getThreadCount();
+      long peakThreadCount = threadMXBean.getPeakThreadCount();
+      long totalStartedThreadCount = threadMXBean.getTotalStartedThreadCount();
+
+      synchronized (this) {
+        this.heapUsed_ = heapMemoryUsage.getUsed();
+        this.heapMax_ = heapMemoryUsage.getMax();
+        this.nonHeapUsed_ = nonHeapMemoryUsage.getUsed();
+        this.nonHeapMax_ = nonHeapMemoryUsage.getMax();
+        this.metadata_ = metadata;
+        this.metadataConnection_ = connection;
+        this.uptime_ = uptime;
+        this.gcCount = gcCount;
+        updateInternal(uptime, cpuTime, gcTime);
+        this.totalLoadedClassCount_ = totalLoadedClassCount;
+        this.threadCount_ = threadCount;
+        this.peakThreadCount_ = peakThreadCount;
+        this.totalStartedThreadCount_ = totalStartedThreadCount;
+        this.lastUpdateTime_ = System.currentTimeMillis();
+      }
+      updateErrorCount_ = 0;
+      state = VMInfoState.ATTACHED;
     } catch (Throwable e) {
       Logger.getLogger("jvmtop").log(Level.FINE, "error during update", e);
-      updateErrorCount_++;
-      if (updateErrorCount_ > 10) {
+      handleUpdateError();
+    } finally {
+      updateStartTime_ = 0;
+    }
+  }
+
+  /**
+   * Updates all metrics from the perfdata file.
+   *
+   * There is no process CPU time in the perfdata, so the CPU load is reported as -1.
+   * The GC load is the share of wall-clock time spent in GC.
+   */
+  private void updateFromPerfData() {
+    if (state == VMInfoState.DETACHED) {
+      return;
+    }
+    if (!perfData_.isAlive()) {
+      state = VMInfoState.DETACHED;
+      return;
+    }
+    if (perfData_.isReplaced()) {
+      // the pid has been reused, the old mapping would never change again
+      try {
+        perfData_ = PerfDataMetrics.open(getId());
+      } catch (IOException e) {
+        Logger.getLogger("jvmtop").log(Level.FINE, "cannot re-open perfdata", e);
         state = VMInfoState.DETACHED;
-      } else {
-        state = VMInfoState.ATTACHED_UPDATE_ERROR;
+        return;
       }
     }
+    if (!perfData_.resolve()) {
+      // jvm is still initializing
+      return;
+    }
+
+    PerfDataMetrics perfData = perfData_;
+    VMMetadata metadata = metadata_;
+    if (metadata == null || perfData != metadataPerfData_) {
+      metadata = VMMetadata.fromPerfData(perfData);
+    }
+    long uptime = perfData_.getUptime();
+    long gcTime = perfData_.getGcTime();
+
+    synchronized (this) {
+      this.heapUsed_ = perfData_.getHeapUsed();
+      this.heapMax_ = perfData_.getHeapMax();
+      this.nonHeapUsed_ = perfData_.getNonHeapUsed();
+      this.nonHeapMax_ = perfData_.getNonHeapMax();
+      this.metadata_ = metadata;
+      this.metadataPerfData_ = perfData;
+      this.uptime_ = uptime;
+      this.gcCount = perfData_.getGcCount();
+      if (lastUpTime > 0 && uptime > lastUpTime) {
+        deltaUptime = uptime - lastUpTime;
+        deltaGcTime = gcTime - lastGcTime;
+        gcLoad = Math.min(1.0, deltaGcTime / (double) deltaUptime);
+      }
+      cpuLoad = -1;
+      lastUpTime = uptime;
+      lastGcTime = gcTime;
+      this.totalLoadedClassCount_ = perfData_.getTotalLoadedClassCount();
+      this.threadCount_ = perfData_.getThreadCount();
+      this.peakThreadCount_ = perfData_.getPeakThreadCount();
+      this.totalStartedThreadCount_ = perfData_.getTotalStartedThreadCount();
+      this.lastUpdateTime_ = System.currentTimeMillis();
+    }
+    state = VMInfoState.ATTACHED;
   }
 
   /**
-   * calculates internal delta metrics
+   * Searches the jvm for deadlocked threads and caches the result.
+   * This is expensive for jvms with many threads, so it is run by the DeadlockDetector
+   * on its own schedule instead of during update().
+   */
+  public void detectDeadlocks() {
+    if (perfData_ != null || proxyClient == null || proxyClient.isDead()
+        || state != VMInfoState.ATTACHED) {
+      return;
+    }
+    try {
+      ThreadMXBean threadMXBean = proxyClient.getThreadMXBean();
+      deadlocksDetected_ = threadMXBean.findDeadlockedThreads() != null
+          || threadMXBean.findMonitorDeadlockedThreads() != null;
+    } catch (Exception e) {
+      Logger.getLogger("jvmtop").log(Level.FINE, "error during deadlock detection", e);
+    }
+  }
+
+  /**
+   * Returns the CPU times (in nanoseconds, -1 for terminated threads) of the given threads.
+   *
+   * Uses a single bulk call if the jvm supports it,
+   * otherwise falls back to one call per thread.
    *
-   * @throws Exception
+   * @param threadIds
+   * @return
+   * @throws IOException
    */
-  private void updateInternal() throws Exception {
-    long uptime = runtimeMXBean.getUptime();
+  public long[] getThreadCpuTimes(long[] threadIds) throws IOException {
+    com.sun.management.ThreadMXBean sunThreadMXBean = proxyClient.getSunThreadMXBean();
+    if (sunThreadMXBean != null) {
+      return sunThreadMXBean.getThreadCpuTime(threadIds);
+    }
+    ThreadMXBean threadMXBean = proxyClient.getThreadMXBean();
+    long[] cpuTimes = new long[threadIds.length];
+    for (int i = 0; i < threadIds.length; i++) {
+      cpuTimes[i] = threadMXBean.getThreadCpuTime(threadIds[i]);
+    }
+    return cpuTimes;
+  }
 
-    long cpuTime = proxyClient.getProcessCpuTime();
-    //long cpuTime = osBean.getProcessCpuTime();
-    long gcTime = sumGCTimes();
-    gcCount = sumGCCount();
+  /**
+   * Returns true if getThreadCpuTimes() needs only a single call, regardless of the number of threads.
+   */
+  public boolean isBulkThreadCpuTimeSupported() throws IOException {
+    return proxyClient.getSunThreadMXBean() != null;
+  }
+
+  /**
+   * Error policy for failed updates:
+   * a jvm is only detached after MAX_CONSECUTIVE_UPDATE_ERRORS failed updates in a row,
+   * a single successful update brings it back into the ATTACHED state.
+   *
+   * Slow jvms never end up here, their updates are simply still in progress (see isUpdatePending()).
+   */
+  private void handleUpdateError() {
+    updateErrorCount_++;
+    if (updateErrorCount_ > MAX_CONSECUTIVE_UPDATE_ERRORS) {
+      state = VMInfoState.DETACHED;
+    } else {
+      state = VMInfoState.ATTACHED_UPDATE_ERROR;
+    }
+  }
+
+  /**
+   * calculates internal delta metrics
+   */
+  private void updateInternal(long uptime, long cpuTime, long gcTime) {
     if (lastUpTime > 0 && lastCPUTime > 0 && gcTime > 0) {
       deltaUptime = uptime - lastUpTime;
       deltaCpuTime = (cpuTime - lastCPUTime) / 1000000;
@@ -291,10 +493,6 @@ public class VMInfo {
     lastUpTime = uptime;
     lastCPUTime = cpuTime;
     lastGcTime = gcTime;
-
-    totalLoadedClassCount_ = classLoadingMXBean_.getTotalLoadedClassCount();
-
-    threadCount_ = threadMXBean.getThreadCount();
   }
 
   /**
@@ -309,7 +507,7 @@ public class VMInfo {
       return 0.0;
     }
     return Math.min(99.0,
-        deltaTime / (deltaUptime * osBean.getAvailableProcessors()));
+        deltaTime / (deltaUptime * metadata_.getAvailableProcessors()));
   }
 
   /**
@@ -317,9 +515,9 @@ public class VMInfo {
    *
    * @return
    */
-  private long sumGCTimes() {
+  private static long sumGCTimes(Collection<GarbageCollectorMXBean> gcMXBeans) {
     long sum = 0;
-    for (java.lang.management.GarbageCollectorMXBean mxBean : gcMXBeans) {
+    for (GarbageCollectorMXBean mxBean : gcMXBeans) {
       sum += mxBean.getCollectionTime();
     }
     return sum;
@@ -330,56 +528,67 @@ public class VMInfo {
    *
    * @return
    */
-  private long sumGCCount() {
+  private static long sumGCCount(Collection<GarbageCollectorMXBean> gcMXBeans) {
     long sum = 0;
-    for (java.lang.management.GarbageCollectorMXBean mxBean : gcMXBeans) {
+    for (GarbageCollectorMXBean mxBean : gcMXBeans) {
       sum += mxBean.getCollectionCount();
     }
     return sum;
   }
 
-  public long getHeapUsed() {
-    return heapMemoryUsage.getUsed();
+  public synchronized long getHeapUsed() {
+    return heapUsed_;
   }
 
-  public long getHeapMax() {
-    return heapMemoryUsage.getMax();
+  public synchronized long getHeapMax() {
+    return heapMax_;
   }
 
-  public long getNonHeapUsed() {
-    return nonHeapMemoryUsage.getUsed();
+  public synchronized long getNonHeapUsed() {
+    return nonHeapUsed_;
   }
 
-  public long getNonHeapMax() {
-    return nonHeapMemoryUsage.getMax();
+  public synchronized long getNonHeapMax() {
+    return nonHeapMax_;
   }
 
-  public long getTotalLoadedClassCount() {
+  public synchronized long getTotalLoadedClassCount() {
     return totalLoadedClassCount_;
   }
 
+  /**
+   * Returns the result of the last deadlock detection,
+   * false if the jvm is not watched by a DeadlockDetector.
+   */
   public boolean hasDeadlockThreads() {
     return deadlocksDetected_;
   }
 
-  public long getThreadCount() {
+  public synchronized long getThreadCount() {
     return threadCount_;
   }
 
   /**
-   * @return the cpuLoad
+   * @return the cpuLoad, or -1 if unknown
    */
-  public double getCpuLoad() {
+  public synchronized double getCpuLoad() {
     return cpuLoad;
   }
 
   /**
    * @return the gcLoad
    */
-  public double getGcLoad() {
+  public synchronized double getGcLoad() {
     return gcLoad;
   }
 
+  /**
+   * Returns true if the metrics are read from the perfdata file instead of a JMX connection.
+   */
+  public boolean isPerfDataVM() {
+    return perfData_ != null;
+  }
+
   /**
    * @return the proxyClient
    */
@@ -387,6 +596,10 @@ public class VMInfo {
     return proxyClient;
   }
 
+  public LocalVirtualMachine getLocalVm() {
+    return localVm;
+  }
+
   public String getDisplayName() {
     return localVm.displayName();
   }
@@ -399,19 +612,28 @@ public class VMInfo {
     return rawId_;
   }
 
-  public long getGcCount() {
+  public synchronized long getGcCount() {
     return gcCount;
   }
 
+  /**
+   * Returns the jvm-constant data, or null if the jvm has not been updated successfully yet.
+   */
+  public VMMetadata getMetadata() {
+    return metadata_;
+  }
+
   public String getVMVersion() {
-    return vmVersion_;
+    VMMetadata metadata = metadata_;
+    return metadata == null ? null : metadata.getVMVersion();
   }
 
   public String getOSUser() {
-    return osUser_;
+    VMMetadata metadata = metadata_;
+    return metadata == null ? null : metadata.getOSUser();
   }
 
-  public long getGcTime() {
+  public synchronized long getGcTime() {
     return lastGcTime;
   }
 
@@ -419,8 +641,9 @@ public class VMInfo {
     return runtimeMXBean;
   }
 
-  public Collection<java.lang.management.GarbageCollectorMXBean> getGcMXBeans() {
-    return gcMXBeans;
+  public Collection<GarbageCollectorMXBean> getGcMXBeans() {
+    VMMetadata metadata = metadata_;
+    return metadata == null ? null : metadata.getGcMXBeans();
   }
 
   public MemoryMXBean getMemoryMXBean() {
@@ -435,44 +658,68 @@ public class VMInfo {
     return osBean;
   }
 
-  public long getDeltaUptime() {
+  public synchronized long getDeltaUptime() {
     return deltaUptime;
   }
 
-  public long getDeltaCpuTime() {
+  public synchronized long getDeltaCpuTime() {
     return deltaCpuTime;
   }
 
-  public long getDeltaGcTime() {
+  public synchronized long getDeltaGcTime() {
     return deltaGcTime;
   }
 
   public Map<String, String> getSystemProperties() {
-    return systemProperties;
+    VMMetadata metadata = metadata_;
+    return metadata == null ? null : metadata.getSystemProperties();
+  }
+
+  public List<String> getInputArguments() {
+    VMMetadata metadata = metadata_;
+    return metadata == null ? null : metadata.getInputArguments();
+  }
+
+  public synchronized long getUptime() {
+    return uptime_;
+  }
+
+  public synchronized long getPeakThreadCount() {
+    return peakThreadCount_;
+  }
+
+  public synchronized long getTotalStartedThreadCount() {
+    return totalStartedThreadCount_;
+  }
+
+  public int getUpdateErrorCount() {
+    return updateErrorCount_;
   }
 
   /**
-   * Extracts the jvmtop "short version" out of different properties
-   * TODO: should this be refactored?
-   *
-   * @return
+   * Returns true if an update of this jvm has been queued or started but is not finished yet,
+   * i.e. all metrics still represent the last successful update.
    */
-  private String extractShortVer() {
-    String vmVer = systemProperties.get("java.runtime.version");
+  public boolean isUpdatePending() {
+    return updateSubmitTime_ != 0 || updateStartTime_ != 0;
+  }
 
-    String vmVendor = systemProperties.get("java.vendor");
+  /**
+   * Records the time an update has been handed to a poller, or 0 once it is finished or dropped.
+   */
+  void setUpdateSubmitTime(long updateSubmitTime) {
+    updateSubmitTime_ = updateSubmitTime;
+  }
 
-    Pattern pattern = Pattern.compile("[0-9]\\.([0-9])\\.0_([0-9]+)-.*");
-    Matcher matcher = pattern.matcher(vmVer);
-    if (matcher.matches()) {
-      return vmVendor.charAt(0) + matcher.group(1) + "U" + matcher.group(2);
-    } else {
-      pattern = Pattern.compile(".*-(.*)_.*");
-      matcher = pattern.matcher(vmVer);
-      if (matcher.matches()) {
-        return vmVendor.charAt(0) + matcher.group(1).substring(2, 6);
-      }
-      return vmVer;
+  /**
+   * Returns the age of the currently shown metrics in milliseconds,
+   * or -1 if no update succeeded yet.
+   */
+  public long getSnapshotAge() {
+    long lastUpdateTime = lastUpdateTime_;
+    if (lastUpdateTime == 0) {
+      return -1;
     }
+    return System.currentTimeMillis() - lastUpdateTime;
   }
 }
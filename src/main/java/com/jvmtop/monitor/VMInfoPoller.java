@@ -0,0 +1,191 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.monitor;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updates the metrics of several jvms in parallel, at most concurrency updates at a time.
+ *
+ * As every update consists of several blocking remote calls,
+ * the duration of one polling round is roughly the duration of the slowest jvm
+ * instead of the sum of all of them (as long as there are enough workers).
+ *
+ * updateAll() never blocks longer than the given deadline.
+ * Updates which could not be started until then stay queued for the next round,
+ * updates running longer than the deadline are abandoned:
+ * they keep running in the background on their own thread, but no longer count
+ * against the concurrency, so a hung jvm cannot starve the others.
+ * In both cases the affected jvms keep their last snapshot (see VMInfo.isUpdatePending())
+ * and will not be polled again until their update has finished.
+ *
+ * Not thread-safe, updateAll() and cancel() are supposed to be called by the rendering thread only.
+ */
+public class VMInfoPoller {
+
+  public static final int DEFAULT_CONCURRENCY = 8;
+  public static final long DEFAULT_DEADLINE_MILLIS = 1000;
+
+  private final int concurrency;
+  private final ExecutorService executor;
+  private final BlockingQueue<VMInfo> finishedUpdates = new LinkedBlockingQueue<>();
+  private final Set<VMInfo> queuedUpdates = new LinkedHashSet<>();
+  private final Map<VMInfo, RunningUpdate> runningUpdates = new HashMap<>();
+  private final Map<VMInfo, Future<?>> abandonedUpdates = new HashMap<>();
+
+  private static class RunningUpdate {
+    private final Future<?> future;
+    private final long startTime;
+
+    private RunningUpdate(Future<?> future, long startTime) {
+      this.future = future;
+      this.startTime = startTime;
+    }
+  }
+
+  public VMInfoPoller(int concurrency) {
+    super();
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("Poller concurrency must be at least 1");
+    }
+    this.concurrency = concurrency;
+    // abandoned updates keep their thread, so the pool must be able to grow beyond concurrency
+    executor = Executors.newCachedThreadPool(new DaemonThreadFactory("jvmtop-poller"));
+  }
+
+  /**
+   * Updates all given jvms and blocks until every update has finished
+   * or the deadline has passed.
+   *
+   * @param vmInfos
+   * @param deadlineMillis
+   * @throws InterruptedException
+   */
+  public void updateAll(Collection<VMInfo> vmInfos, long deadlineMillis)
+      throws InterruptedException {
+    long now = System.currentTimeMillis();
+    long giveUpTime = now + deadlineMillis;
+    collectFinishedUpdates();
+
+    Set<VMInfo> requested = new HashSet<>(vmInfos);
+    for (Iterator<VMInfo> it = queuedUpdates.iterator(); it.hasNext(); ) {
+      VMInfo vmInfo = it.next();
+      if (!requested.contains(vmInfo)) {
+        it.remove();
+        vmInfo.setUpdateSubmitTime(0);
+      }
+    }
+    for (VMInfo vmInfo : vmInfos) {
+      if (!queuedUpdates.contains(vmInfo) && !runningUpdates.containsKey(vmInfo)
+          && !abandonedUpdates.containsKey(vmInfo)) {
+        vmInfo.setUpdateSubmitTime(now);
+        queuedUpdates.add(vmInfo);
+      }
+    }
+
+    while (true) {
+      now = System.currentTimeMillis();
+      abandonOverdueUpdates(now, deadlineMillis);
+      startQueuedUpdates(now);
+      if (runningUpdates.isEmpty() || now >= giveUpTime) {
+        return;
+      }
+      long waitUntil = giveUpTime;
+      for (RunningUpdate update : runningUpdates.values()) {
+        waitUntil = Math.min(waitUntil, update.startTime + deadlineMillis);
+      }
+      VMInfo finished = finishedUpdates.poll(waitUntil - now, TimeUnit.MILLISECONDS);
+      if (finished != null) {
+        finishUpdate(finished);
+        collectFinishedUpdates();
+      }
+    }
+  }
+
+  /**
+   * Drops the queued update of the given jvm and interrupts a running one,
+   * e.g. because the jvm terminated.
+   *
+   * @param vmInfo
+   */
+  public void cancel(VMInfo vmInfo) {
+    queuedUpdates.remove(vmInfo);
+    RunningUpdate running = runningUpdates.remove(vmInfo);
+    Future<?> update = running != null ? running.future : abandonedUpdates.remove(vmInfo);
+    if (update != null) {
+      update.cancel(true);
+    }
+    vmInfo.setUpdateSubmitTime(0);
+  }
+
+  private void startQueuedUpdates(long now) {
+    for (Iterator<VMInfo> it = queuedUpdates.iterator();
+         it.hasNext() && runningUpdates.size() < concurrency; ) {
+      final VMInfo vmInfo = it.next();
+      it.remove();
+      Future<?> future = executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            vmInfo.update();
+          } finally {
+            vmInfo.setUpdateSubmitTime(0);
+            finishedUpdates.add(vmInfo);
+          }
+        }
+      });
+      runningUpdates.put(vmInfo, new RunningUpdate(future, now));
+    }
+  }
+
+  private void abandonOverdueUpdates(long now, long deadlineMillis) {
+    for (Iterator<Map.Entry<VMInfo, RunningUpdate>> it = runningUpdates.entrySet().iterator();
+         it.hasNext(); ) {
+      Map.Entry<VMInfo, RunningUpdate> entry = it.next();
+      if (now >= entry.getValue().startTime + deadlineMillis) {
+        it.remove();
+        abandonedUpdates.put(entry.getKey(), entry.getValue().future);
+      }
+    }
+  }
+
+  private void collectFinishedUpdates() {
+    VMInfo finished;
+    while ((finished = finishedUpdates.poll()) != null) {
+      finishUpdate(finished);
+    }
+  }
+
+  private void finishUpdate(VMInfo vmInfo) {
+    if (runningUpdates.remove(vmInfo) == null) {
+      abandonedUpdates.remove(vmInfo);
+    }
+  }
+}
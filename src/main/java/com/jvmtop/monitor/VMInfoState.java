@@ -24,7 +24,7 @@ package com.jvmtop.monitor;
  *
  */
 public enum VMInfoState {
-  INIT, ERROR_DURING_ATTACH, ATTACHED, ATTACHED_UPDATE_ERROR, DETACHED,
+  INIT, ATTACHING, ERROR_DURING_ATTACH, ATTACHED, ATTACHED_UPDATE_ERROR, DETACHED,
   CONNECTION_REFUSED,
   UNKNOWN_ERROR
 }
\ No newline at end of file
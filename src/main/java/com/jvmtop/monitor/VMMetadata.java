@@ -0,0 +1,158 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.monitor;
+
+import com.jvmtop.openjdk.tools.ProxyClient;
+import com.jvmtop.perfdata.PerfDataMetrics;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable, jvm-constant data of a monitored jvm.
+ *
+ * Fetched once after attaching (the system properties are usually the largest payload
+ * of the whole update) and only fetched again after the connection had to be re-established.
+ */
+public final class VMMetadata {
+
+  private static final Pattern VERSION_PATTERN = Pattern.compile("[0-9]\\.([0-9])\\.0_([0-9]+)(-.*)?");
+  private static final Pattern BUILD_PATTERN = Pattern.compile(".*-(.*)_.*");
+
+  private final Map<String, String> systemProperties;
+  private final List<String> inputArguments;
+  private final String vmVersion;
+  private final String osUser;
+  private final int availableProcessors;
+  private final List<GarbageCollectorMXBean> gcMXBeans;
+
+  private VMMetadata(Map<String, String> systemProperties, List<String> inputArguments,
+                     int availableProcessors, Collection<GarbageCollectorMXBean> gcMXBeans) {
+    super();
+    this.systemProperties = Collections.unmodifiableMap(new HashMap<>(systemProperties));
+    this.inputArguments = Collections.unmodifiableList(new ArrayList<>(inputArguments));
+    this.vmVersion = extractShortVer(systemProperties);
+    this.osUser = systemProperties.get("user.name");
+    this.availableProcessors = availableProcessors;
+    this.gcMXBeans = Collections.unmodifiableList(new ArrayList<>(gcMXBeans));
+  }
+
+  /**
+   * Fetches the metadata via JMX.
+   *
+   * @param proxyClient
+   * @return
+   * @throws IOException
+   */
+  public static VMMetadata fetch(ProxyClient proxyClient) throws IOException {
+    RuntimeMXBean runtimeMXBean = proxyClient.getRuntimeMXBean();
+    return new VMMetadata(runtimeMXBean.getSystemProperties(),
+        runtimeMXBean.getInputArguments(),
+        proxyClient.getSunOperatingSystemMXBean().getAvailableProcessors(),
+        proxyClient.getGarbageCollectorMXBeans());
+  }
+
+  /**
+   * Reads the metadata from the perfdata file.
+   * The number of available processors is not known there and reported as -1,
+   * there are no GC MXBeans.
+   *
+   * @param perfData
+   * @return
+   */
+  public static VMMetadata fromPerfData(PerfDataMetrics perfData) {
+    String vmArgs = perfData.getVmArguments();
+    List<String> inputArguments = vmArgs == null || vmArgs.trim().isEmpty()
+        ? Collections.<String>emptyList() : Arrays.asList(vmArgs.trim().split(" +"));
+    return new VMMetadata(perfData.getSystemProperties(), inputArguments, -1,
+        Collections.<GarbageCollectorMXBean>emptyList());
+  }
+
+  public Map<String, String> getSystemProperties() {
+    return systemProperties;
+  }
+
+  public List<String> getInputArguments() {
+    return inputArguments;
+  }
+
+  /**
+   * Returns the jvmtop "short version", e.g. O7U51
+   */
+  public String getVMVersion() {
+    return vmVersion;
+  }
+
+  public String getOSUser() {
+    return osUser;
+  }
+
+  /**
+   * @return the number of available processors, or -1 if unknown
+   */
+  public int getAvailableProcessors() {
+    return availableProcessors;
+  }
+
+  public List<GarbageCollectorMXBean> getGcMXBeans() {
+    return gcMXBeans;
+  }
+
+  /**
+   * Extracts the jvmtop "short version" out of different properties
+   *
+   * @param systemProperties
+   * @return
+   */
+  private static String extractShortVer(Map<String, String> systemProperties) {
+    String vmVer = systemProperties.get("java.runtime.version");
+    if (vmVer == null) {
+      // perfdata only provides java.version
+      vmVer = systemProperties.get("java.version");
+    }
+
+    String vmVendor = systemProperties.get("java.vendor");
+    if (vmVendor == null) {
+      vmVendor = systemProperties.get("java.vm.vendor");
+    }
+    if (vmVer == null || vmVendor == null || vmVendor.isEmpty()) {
+      return vmVer;
+    }
+
+    Matcher matcher = VERSION_PATTERN.matcher(vmVer);
+    if (matcher.matches()) {
+      return vmVendor.charAt(0) + matcher.group(1) + "U" + matcher.group(2);
+    } else {
+      matcher = BUILD_PATTERN.matcher(vmVer);
+      if (matcher.matches() && matcher.group(1).length() >= 6) {
+        return vmVendor.charAt(0) + matcher.group(1).substring(2, 6);
+      }
+      return vmVer;
+    }
+  }
+}
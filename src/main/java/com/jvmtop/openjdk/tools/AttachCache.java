@@ -0,0 +1,143 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.openjdk.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the outcome of attach attempts during jvm discovery,
+ * so that jvms which cannot be attached to (other users, -XX:+DisableAttachMechanism, ...)
+ * are not probed on every scan.
+ *
+ * Failed attempts are retried with an exponential backoff.
+ * Entries are keyed by pid and process start time, so a reused pid invalidates its entry.
+ * If the start time is not available (non-Linux platforms), only the pid is used.
+ */
+class AttachCache {
+
+  static final long INITIAL_RETRY_DELAY_MILLIS = 5000;
+  static final long MAX_RETRY_DELAY_MILLIS = 10 * 60 * 1000;
+
+  /**
+   * Outcome of the attach attempts for a single process
+   */
+  static final class Entry {
+    private final long startTime;
+    private boolean attachable;
+    private String address;
+    private int failures;
+    private long nextRetryTime;
+
+    private Entry(long startTime) {
+      this.startTime = startTime;
+    }
+
+    boolean isAttachable() {
+      return attachable;
+    }
+
+    String getAddress() {
+      return address;
+    }
+
+    /**
+     * Returns true if a (new) attach attempt should be made.
+     */
+    boolean isAttachDue(long now) {
+      return !attachable && now >= nextRetryTime;
+    }
+  }
+
+  private final Map<Integer, Entry> entries = new HashMap<>();
+
+  /**
+   * Returns the cached entry of the given process,
+   * or null if there is none or if the pid has been reused by another process.
+   */
+  synchronized Entry get(int vmid) {
+    Entry entry = entries.get(vmid);
+    if (entry != null && entry.startTime != getProcessStartTime(vmid)) {
+      entries.remove(vmid);
+      return null;
+    }
+    return entry;
+  }
+
+  synchronized void recordSuccess(int vmid, String address) {
+    Entry entry = getOrCreate(vmid);
+    entry.attachable = true;
+    entry.address = address;
+    entry.failures = 0;
+  }
+
+  synchronized void recordFailure(int vmid) {
+    Entry entry = getOrCreate(vmid);
+    entry.attachable = false;
+    entry.address = null;
+    long delay = INITIAL_RETRY_DELAY_MILLIS << Math.min(entry.failures, 16);
+    entry.nextRetryTime = System.currentTimeMillis() + Math.min(delay, MAX_RETRY_DELAY_MILLIS);
+    entry.failures++;
+  }
+
+  /**
+   * Drops the entries of all processes which are not contained in the given set.
+   */
+  synchronized void retainAll(Set<Integer> vmids) {
+    for (Iterator<Integer> it = entries.keySet().iterator(); it.hasNext(); ) {
+      if (!vmids.contains(it.next())) {
+        it.remove();
+      }
+    }
+  }
+
+  private Entry getOrCreate(int vmid) {
+    Entry entry = get(vmid);
+    if (entry == null) {
+      entry = new Entry(getProcessStartTime(vmid));
+      entries.put(vmid, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Returns the start time of the given process (in clock ticks since boot),
+   * or -1 if it cannot be determined.
+   */
+  static long getProcessStartTime(int pid) {
+    File stat = new File("/proc/" + pid + "/stat");
+    if (!stat.isFile()) {
+      return -1;
+    }
+    try {
+      String content = new String(Files.readAllBytes(stat.toPath()), Charset.forName("US-ASCII"));
+      // the command name (field 2) may contain spaces, so start behind its closing bracket
+      String[] fields = content.substring(content.lastIndexOf(')') + 2).split(" ");
+      // starttime is field 22, i.e. the 20th field behind the command name
+      return Long.parseLong(fields[19]);
+    } catch (IOException | RuntimeException e) {
+      return -1;
+    }
+  }
+}
@@ -27,6 +27,8 @@ import sun.management.ConnectorAddressLink;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 // Sun specific
 // Sun private
 
@@ -138,6 +140,57 @@ public class LocalVirtualMachine {
     return map;
   }
 
+  // This method returns the ids of all virtual machines currently
+  // running on the machine, without attaching to any of them
+  public static Set<Integer> getActiveVmIds() {
+    Set<Integer> vmids = new HashSet<>();
+    if (!J9Mode) {
+      try {
+        MonitoredHost host = MonitoredHost.getMonitoredHost(
+            new HostIdentifier((String) null));
+        for (Object vmid : host.activeVms()) {
+          if (vmid instanceof Integer) {
+            vmids.add((Integer) vmid);
+          }
+        }
+      } catch (java.net.URISyntaxException | MonitorException sx) {
+        throw new InternalError(sx.getMessage());
+      }
+    }
+    for (VirtualMachineDescriptor vmd : VirtualMachine.list()) {
+      try {
+        vmids.add(Integer.valueOf(vmd.id()));
+      } catch (NumberFormatException e) {
+        // do not support vmid different than pid
+      }
+    }
+    return vmids;
+  }
+
+  // This method returns the virtual machine with the given pid,
+  // based on its perfdata, or null if it is not available (yet)
+  public static LocalVirtualMachine getMonitoredVirtualMachine(int vmid) {
+    //Unsupported on J9
+    if (J9Mode) {
+      return null;
+    }
+    try {
+      MonitoredHost host = MonitoredHost.getMonitoredHost(
+          new HostIdentifier((String) null));
+      MonitoredVm mvm = host.getMonitoredVm(new VmIdentifier(String.valueOf(vmid)));
+      try {
+        String name = MonitoredVmUtil.commandLine(mvm);
+        boolean attachable = MonitoredVmUtil.isAttachable(mvm);
+        String address = ConnectorAddressLink.importFrom(vmid);
+        return new LocalVirtualMachine(vmid, name, attachable, address);
+      } finally {
+        mvm.detach();
+      }
+    } catch (Exception x) {
+      return null;
+    }
+  }
+
   private static void getMonitoredVMs(Map<Integer, LocalVirtualMachine> map,
                                       Map<Integer, LocalVirtualMachine> existingMap) {
     //Unsupported on J9
@@ -179,35 +232,72 @@ public class LocalVirtualMachine {
 
   private static final String LOCAL_CONNECTOR_ADDRESS_PROP = "com.sun.management.jmxremote.localConnectorAddress";
 
+  // remembers attach results, so not attachable vms are not probed on every scan
+  private static final AttachCache attachCache = new AttachCache();
+
   private static void getAttachableVMs(Map<Integer, LocalVirtualMachine> map,
                                        Map<Integer, LocalVirtualMachine> existingVmMap) {
     List<VirtualMachineDescriptor> vms = VirtualMachine.list();
+    // jvms only visible via perfdata keep their entries as well, see reprobe()
+    Set<Integer> knownVmids = new HashSet<>(map.keySet());
+    knownVmids.addAll(existingVmMap.keySet());
+    long now = System.currentTimeMillis();
     for (VirtualMachineDescriptor vmd : vms) {
       try {
         Integer vmid = Integer.valueOf(vmd.id());
+        knownVmids.add(vmid);
         if (!map.containsKey(vmid) && !existingVmMap.containsKey(vmid)) {
-          boolean attachable = false;
-          String address = null;
-          try {
-            VirtualMachine vm = VirtualMachine.attach(vmd);
-            attachable = true;
-            Properties agentProps = vm.getAgentProperties();
-            address = (String) agentProps.get(LOCAL_CONNECTOR_ADDRESS_PROP);
-            vm.detach();
-          } catch (AttachNotSupportedException | NullPointerException x) {
-            // not attachable
-            x.printStackTrace(System.err);
-          } catch (IOException x) {
-            // ignore
+          AttachCache.Entry cached = attachCache.get(vmid);
+          if (cached != null && !cached.isAttachDue(now)) {
+            map.put(vmid, new LocalVirtualMachine(vmid, vmd.displayName(),
+                cached.isAttachable(), cached.getAddress()));
+          } else {
+            map.put(vmid, probe(vmid, vmd.displayName()));
           }
-          LocalVirtualMachine machine = new LocalVirtualMachine(
-              vmid, vmd.displayName(), attachable, address);
-          map.put(vmid, machine);
         }
       } catch (NumberFormatException e) {
         // do not support vmid different than pid
       }
     }
+    attachCache.retainAll(knownVmids);
+  }
+
+  // This method returns true if the given virtual machine was not attachable
+  // when it was discovered and the delay before the next attach attempt has passed
+  public static boolean isAttachRetryDue(LocalVirtualMachine vm) {
+    if (vm.isAttachable()) {
+      return false;
+    }
+    // jvms discovered via perfdata have not been probed yet
+    AttachCache.Entry cached = attachCache.get(vm.vmid());
+    return cached == null || cached.isAttachDue(System.currentTimeMillis());
+  }
+
+  // This method attaches to the given virtual machine once more
+  // and returns a copy reflecting the outcome
+  public static LocalVirtualMachine reprobe(LocalVirtualMachine vm) {
+    return probe(vm.vmid(), vm.commandLine);
+  }
+
+  private static LocalVirtualMachine probe(int vmid, String commandLine) {
+    boolean attachable = false;
+    String address = null;
+    try {
+      VirtualMachine vm = VirtualMachine.attach(String.valueOf(vmid));
+      attachable = true;
+      Properties agentProps = vm.getAgentProperties();
+      address = (String) agentProps.get(LOCAL_CONNECTOR_ADDRESS_PROP);
+      vm.detach();
+      attachCache.recordSuccess(vmid, address);
+    } catch (AttachNotSupportedException | NullPointerException x) {
+      // not attachable
+      Logger.getLogger("jvmtop").log(Level.FINE,
+          "jvm is not attachable (PID=" + vmid + ")", x);
+      attachCache.recordFailure(vmid);
+    } catch (IOException x) {
+      attachCache.recordFailure(vmid);
+    }
+    return new LocalVirtualMachine(vmid, commandLine, attachable, address);
   }
 
   public static LocalVirtualMachine getLocalVirtualMachine(int vmid)
@@ -289,5 +379,6 @@ public class LocalVirtualMachine {
     }
 
     vm.detach();
+    attachCache.recordSuccess(vmid, address);
   }
 }
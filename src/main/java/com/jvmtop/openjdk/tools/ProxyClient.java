@@ -57,6 +57,7 @@ public class ProxyClient {
       Collections.synchronizedMap(new HashMap<String, ProxyClient>());
 
   private ConnectionState connectionState = ConnectionState.DISCONNECTED;
+  private volatile int connectionCount = 0;
   private volatile boolean isDead = true;
   private String hostName = null;
   private int port = 0;
@@ -98,6 +99,8 @@ public class ProxyClient {
   private ThreadMXBean threadMBean = null;
 
   private java.lang.management.OperatingSystemMXBean sunOperatingSystemMXBean = null;
+  private com.sun.management.ThreadMXBean sunThreadMXBean = null;
+  private boolean sunThreadMXBeanChecked = false;
 
   private List<GarbageCollectorMXBean> garbageCollectorMBeans = null;
 
@@ -293,6 +296,14 @@ public class ProxyClient {
     return this.connectionState;
   }
 
+  /**
+   * Returns the number of successful connects so far.
+   * A changed value indicates that data cached from the remote jvm may be outdated.
+   */
+  public int getConnectionCount() {
+    return connectionCount;
+  }
+
   public void flush() {
     if (server != null) {
       server.flush();
@@ -303,6 +314,7 @@ public class ProxyClient {
     setConnectionState(ConnectionState.CONNECTING);
     try {
       tryConnect();
+      connectionCount++;
       setConnectionState(ConnectionState.CONNECTED);
     } catch (Exception e) {
       setConnectionState(ConnectionState.DISCONNECTED);
@@ -547,7 +559,18 @@ public class ProxyClient {
     runtimeMBean = null;
     threadMBean = null;
     sunOperatingSystemMXBean = null;
+    sunThreadMXBean = null;
+    sunThreadMXBeanChecked = false;
     garbageCollectorMBeans = null;
+    // A reused pid must not get this client again
+    if (lvm != null) {
+      String key = getCacheKey(lvm);
+      synchronized (cache) {
+        if (cache.get(key) == this) {
+          cache.remove(key);
+        }
+      }
+    }
     // Set connection state to DISCONNECTED
     if (!isDead) {
       isDead = true;
@@ -735,6 +758,32 @@ public class ProxyClient {
     return threadMBean;
   }
 
+  /**
+   * Returns the thread MXBean with the HotSpot extensions (e.g. bulk thread CPU times),
+   * or null if the remote jvm does not provide them.
+   */
+  public synchronized com.sun.management.ThreadMXBean getSunThreadMXBean()
+      throws IOException {
+    if (hasPlatformMXBeans && !sunThreadMXBeanChecked) {
+      // an IOException leaves the flag unset, so the next call checks again
+      try {
+        if (server.isInstanceOf(new ObjectName(THREAD_MXBEAN_NAME),
+            "com.sun.management.ThreadMXBean")) {
+          sunThreadMXBean = newPlatformMXBeanProxy(server, THREAD_MXBEAN_NAME,
+              com.sun.management.ThreadMXBean.class);
+        }
+        sunThreadMXBeanChecked = true;
+      } catch (InstanceNotFoundException e) {
+        sunThreadMXBeanChecked = true;
+        return null;
+      } catch (MalformedObjectNameException e) {
+        sunThreadMXBeanChecked = true;
+        return null; // should never reach here
+      }
+    }
+    return sunThreadMXBean;
+  }
+
   public synchronized OperatingSystemMXBean getOperatingSystemMXBean() throws IOException {
     if (hasPlatformMXBeans && operatingSystemMBean == null) {
       operatingSystemMBean =
@@ -0,0 +1,327 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.perfdata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only, memory-mapped view of a HotSpot performance data file
+ * (located at &lt;temp directory&gt;/hsperfdata_&lt;user&gt;/&lt;pid&gt;, see getTempDirectory()).
+ *
+ * The entry table is parsed once (and incrementally whenever the jvm adds new entries),
+ * afterwards counter values are read directly from the mapped memory.
+ *
+ * Layout (see hotspot/src/share/vm/runtime/perfMemory.hpp):
+ * <pre>
+ * prologue: magic (int, big endian), byte order (byte), major (byte), minor (byte),
+ *           accessible (byte), used (int), overflow (int), mod time stamp (long),
+ *           entry offset (int), number of entries (int)
+ * entry:    entry length (int), name offset (int), vector length (int), data type (byte),
+ *           flags (byte), data units (byte), data variability (byte), data offset (int)
+ * </pre>
+ */
+public class PerfDataBuffer {
+
+  public static final String PERFDATA_DIR_PREFIX = "hsperfdata_";
+
+  private static final int PERFDATA_MAGIC = 0xcafec0c0;
+  private static final int PERFDATA_BIG_ENDIAN = 0;
+  private static final int PERFDATA_MAJOR_VERSION = 2;
+
+  private static final int BYTE_ORDER_OFFSET = 4;
+  private static final int MAJOR_VERSION_OFFSET = 5;
+  private static final int ACCESSIBLE_OFFSET = 7;
+  private static final int ENTRY_OFFSET_OFFSET = 24;
+  private static final int NUM_ENTRIES_OFFSET = 28;
+
+  private static final int ENTRY_NAME_OFFSET = 4;
+  private static final int ENTRY_VECTOR_LENGTH = 8;
+  private static final int ENTRY_DATA_TYPE = 12;
+  private static final int ENTRY_DATA_OFFSET = 16;
+
+  private static final byte TYPE_LONG = 'J';
+  private static final byte TYPE_BYTE = 'B';
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private final File file;
+  private final Object fileKey;
+  private final MappedByteBuffer buffer;
+  private final Map<String, Entry> entries = new HashMap<>();
+  private int indexedEntries = 0;
+  private int nextEntryPosition = -1;
+
+  /**
+   * Position and shape of a single perfdata entry
+   */
+  private static final class Entry {
+    private final byte type;
+    private final int dataPosition;
+    private final int vectorLength;
+
+    private Entry(byte type, int dataPosition, int vectorLength) {
+      this.type = type;
+      this.dataPosition = dataPosition;
+      this.vectorLength = vectorLength;
+    }
+  }
+
+  /**
+   * Handle to a long counter, reading the current value from the mapped file on every call.
+   */
+  public final class LongCounter {
+    private final int position;
+
+    private LongCounter(int position) {
+      this.position = position;
+    }
+
+    public long get() {
+      return buffer.getLong(position);
+    }
+  }
+
+  public PerfDataBuffer(File file) throws IOException {
+    super();
+    this.file = file;
+    // read before mapping: if the file is replaced in between, the next isReplaced() detects it
+    fileKey = readFileKey(file);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+         FileChannel channel = raf.getChannel()) {
+      // the mapping stays valid after the channel has been closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.capacity() < NUM_ENTRIES_OFFSET + 4
+        || buffer.order(ByteOrder.BIG_ENDIAN).getInt(0) != PERFDATA_MAGIC) {
+      throw new IOException("Not a perfdata file: " + file);
+    }
+    if (buffer.get(BYTE_ORDER_OFFSET) == PERFDATA_BIG_ENDIAN) {
+      buffer.order(ByteOrder.BIG_ENDIAN);
+    } else {
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    if (buffer.get(MAJOR_VERSION_OFFSET) != PERFDATA_MAJOR_VERSION) {
+      throw new IOException("Unsupported perfdata version "
+          + buffer.get(MAJOR_VERSION_OFFSET) + ": " + file);
+    }
+  }
+
+  /**
+   * Returns the directory containing the hsperfdata directories, as used by the jvms themselves.
+   *
+   * HotSpot ignores java.io.tmpdir here: it always uses /tmp on Linux, Solaris and AIX,
+   * so only the remaining platforms fall back to java.io.tmpdir
+   * (which matches the native temp directory there).
+   */
+  public static File getTempDirectory() {
+    try {
+      // available up to java 8, the same source sun.jvmstat uses
+      Class<?> vmSupport = Class.forName("sun.misc.VMSupport");
+      String dir = (String) vmSupport.getMethod("getVMTemporaryDirectory").invoke(null);
+      if (dir != null) {
+        return new File(dir);
+      }
+    } catch (Exception | LinkageError e) {
+      // fall through
+    }
+    String osName = System.getProperty("os.name", "");
+    if (osName.startsWith("Linux") || osName.startsWith("SunOS") || osName.startsWith("AIX")) {
+      return new File("/tmp");
+    }
+    return new File(System.getProperty("java.io.tmpdir"));
+  }
+
+  /**
+   * Searches the perfdata file of the given jvm in all hsperfdata directories of the temp directory.
+   *
+   * @param vmid
+   * @return the file, or null if there is no (readable) perfdata file
+   */
+  public static File findPerfDataFile(int vmid) {
+    File[] perfDataDirs = getTempDirectory().listFiles();
+    if (perfDataDirs == null) {
+      return null;
+    }
+    for (File dir : perfDataDirs) {
+      if (dir.getName().startsWith(PERFDATA_DIR_PREFIX) && dir.isDirectory()) {
+        File file = new File(dir, Integer.toString(vmid));
+        if (file.isFile() && file.canRead()) {
+          return file;
+        }
+      }
+    }
+    return null;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns true if the perfdata file has been replaced by the one of another jvm
+   * which reuses the pid, i.e. this mapping still shows the (unlinked) file of the terminated jvm.
+   * A deleted file is not considered as replaced.
+   */
+  public boolean isReplaced() {
+    try {
+      return !fileKey.equals(readFileKey(file));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the inode (or a comparable identity) of the given file,
+   * or its creation time if the file system provides no such identity.
+   */
+  private static Object readFileKey(File file) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    Object fileKey = attributes.fileKey();
+    return fileKey != null ? fileKey : attributes.creationTime();
+  }
+
+  /**
+   * Returns the name of the user owning this perfdata file, derived from its directory name.
+   */
+  public String getUser() {
+    String dirName = file.getParentFile().getName();
+    if (dirName.startsWith(PERFDATA_DIR_PREFIX)) {
+      return dirName.substring(PERFDATA_DIR_PREFIX.length());
+    }
+    return null;
+  }
+
+  /**
+   * Returns false as long as the jvm is still initializing its perfdata memory.
+   */
+  public boolean isAccessible() {
+    return buffer.get(ACCESSIBLE_OFFSET) != 0;
+  }
+
+  /**
+   * Looks up a long counter.
+   *
+   * @param name
+   * @return the counter, or null if there is no such long counter (yet)
+   */
+  public synchronized LongCounter findLong(String name) {
+    Entry entry = findEntry(name);
+    if (entry == null || entry.type != TYPE_LONG || entry.vectorLength != 0) {
+      return null;
+    }
+    return new LongCounter(entry.dataPosition);
+  }
+
+  /**
+   * Reads the current value of a string entry.
+   *
+   * @param name
+   * @return the value, or null if there is no such string entry (yet)
+   */
+  public synchronized String findString(String name) {
+    Entry entry = findEntry(name);
+    if (entry == null || entry.type != TYPE_BYTE || entry.vectorLength == 0) {
+      return null;
+    }
+    return readString(entry.dataPosition, entry.vectorLength);
+  }
+
+  /**
+   * Returns the values of all string entries whose name starts with the given prefix,
+   * keyed by the remainder of their name.
+   *
+   * @param prefix
+   * @return
+   */
+  public synchronized Map<String, String> findStrings(String prefix) {
+    refreshIndex();
+    Map<String, String> result = new HashMap<>();
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      Entry entry = e.getValue();
+      if (e.getKey().startsWith(prefix) && entry.type == TYPE_BYTE && entry.vectorLength > 0) {
+        result.put(e.getKey().substring(prefix.length()),
+            readString(entry.dataPosition, entry.vectorLength));
+      }
+    }
+    return result;
+  }
+
+  private Entry findEntry(String name) {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      refreshIndex();
+      entry = entries.get(name);
+    }
+    return entry;
+  }
+
+  /**
+   * Indexes all entries which have been added since the last call.
+   * The jvm only appends entries, so already indexed ones never move.
+   */
+  private void refreshIndex() {
+    int numEntries = buffer.getInt(NUM_ENTRIES_OFFSET);
+    if (numEntries == indexedEntries) {
+      return;
+    }
+    if (nextEntryPosition < 0) {
+      nextEntryPosition = buffer.getInt(ENTRY_OFFSET_OFFSET);
+    }
+    while (indexedEntries < numEntries) {
+      int entryLength = buffer.getInt(nextEntryPosition);
+      if (entryLength <= 0 || nextEntryPosition + entryLength > buffer.capacity()) {
+        // entry is not completely written yet
+        return;
+      }
+      int namePosition = nextEntryPosition + buffer.getInt(nextEntryPosition + ENTRY_NAME_OFFSET);
+      int vectorLength = buffer.getInt(nextEntryPosition + ENTRY_VECTOR_LENGTH);
+      byte type = buffer.get(nextEntryPosition + ENTRY_DATA_TYPE);
+      int dataPosition = nextEntryPosition + buffer.getInt(nextEntryPosition + ENTRY_DATA_OFFSET);
+
+      entries.put(readString(namePosition, nextEntryPosition + entryLength - namePosition),
+          new Entry(type, dataPosition, vectorLength));
+      nextEntryPosition += entryLength;
+      indexedEntries++;
+    }
+  }
+
+  /**
+   * Reads a null-terminated string of at most maxLength bytes.
+   */
+  private String readString(int position, int maxLength) {
+    int length = 0;
+    while (length < maxLength && buffer.get(position + length) != 0) {
+      length++;
+    }
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = buffer.get(position + i);
+    }
+    return new String(bytes, CHARSET);
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.perfdata;
+
+import com.jvmtop.perfdata.PerfDataBuffer.LongCounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides the jvmtop overview metrics of a HotSpot jvm, based on its perfdata counters.
+ *
+ * No attach, management agent or RMI connection is required.
+ * All counters are resolved once, reading them afterwards is a plain memory access.
+ *
+ * Not available are the process CPU time and the deadlock detection.
+ */
+public class PerfDataMetrics {
+
+  private final PerfDataBuffer perfData;
+
+  private boolean resolved = false;
+  private LongCounter hrtFrequency;
+  private LongCounter hrtTicks;
+  private List<LongCounter> heapUsed = new ArrayList<>();
+  private List<LongCounter> heapMax = new ArrayList<>();
+  private LongCounter nonHeapUsed;
+  private LongCounter nonHeapMax;
+  private List<LongCounter> gcTime = new ArrayList<>();
+  private List<LongCounter> gcCount = new ArrayList<>();
+  private LongCounter threadCount;
+  private LongCounter peakThreadCount;
+  private LongCounter startedThreadCount;
+  private LongCounter loadedClassCount;
+
+  public PerfDataMetrics(PerfDataBuffer perfData) {
+    super();
+    this.perfData = perfData;
+  }
+
+  /**
+   * Opens the perfdata file of the given jvm.
+   *
+   * @param vmid
+   * @return
+   * @throws IOException if there is no readable perfdata file
+   */
+  public static PerfDataMetrics open(int vmid) throws IOException {
+    File file = PerfDataBuffer.findPerfDataFile(vmid);
+    if (file == null) {
+      throw new IOException("No perfdata file found (PID=" + vmid + ")");
+    }
+    return new PerfDataMetrics(new PerfDataBuffer(file));
+  }
+
+  /**
+   * Returns false if the jvm terminated (and removed its perfdata file).
+   */
+  public boolean isAlive() {
+    return perfData.getFile().exists();
+  }
+
+  /**
+   * Returns true if the pid has been reused by another jvm in the meantime,
+   * the metrics need to be re-opened then.
+   */
+  public boolean isReplaced() {
+    return perfData.isReplaced();
+  }
+
+  /**
+   * Resolves all counters, if the jvm finished initializing its perfdata memory.
+   *
+   * @return true if all counters are available
+   */
+  public synchronized boolean resolve() {
+    if (resolved) {
+      return true;
+    }
+    if (!perfData.isAccessible()) {
+      return false;
+    }
+    hrtFrequency = perfData.findLong("sun.os.hrt.frequency");
+    hrtTicks = perfData.findLong("sun.os.hrt.ticks");
+    threadCount = perfData.findLong("java.threads.live");
+    peakThreadCount = perfData.findLong("java.threads.livePeak");
+    startedThreadCount = perfData.findLong("java.threads.started");
+    loadedClassCount = perfData.findLong("java.cls.loadedClasses");
+    if (hrtFrequency == null || hrtTicks == null || threadCount == null) {
+      return false;
+    }
+
+    for (int gen = 0; perfData.findString("sun.gc.generation." + gen + ".name") != null; gen++) {
+      String prefix = "sun.gc.generation." + gen;
+      if ("perm".equals(perfData.findString(prefix + ".name"))) {
+        nonHeapUsed = perfData.findLong(prefix + ".space.0.used");
+        nonHeapMax = perfData.findLong(prefix + ".maxCapacity");
+        continue;
+      }
+      addIfPresent(heapMax, perfData.findLong(prefix + ".maxCapacity"));
+      for (int space = 0; perfData.findLong(prefix + ".space." + space + ".used") != null; space++) {
+        heapUsed.add(perfData.findLong(prefix + ".space." + space + ".used"));
+      }
+    }
+    if (perfData.findLong("sun.gc.metaspace.used") != null) {
+      nonHeapUsed = perfData.findLong("sun.gc.metaspace.used");
+      nonHeapMax = perfData.findLong("sun.gc.metaspace.maxCapacity");
+    }
+
+    for (int collector = 0; perfData.findLong("sun.gc.collector." + collector + ".time") != null; collector++) {
+      gcTime.add(perfData.findLong("sun.gc.collector." + collector + ".time"));
+      addIfPresent(gcCount, perfData.findLong("sun.gc.collector." + collector + ".invocations"));
+    }
+    resolved = true;
+    return true;
+  }
+
+  private static void addIfPresent(List<LongCounter> counters, LongCounter counter) {
+    if (counter != null) {
+      counters.add(counter);
+    }
+  }
+
+  private static long sum(List<LongCounter> counters) {
+    long sum = 0;
+    for (LongCounter counter : counters) {
+      sum += counter.get();
+    }
+    return sum;
+  }
+
+  private static long get(LongCounter counter) {
+    return counter == null ? -1 : counter.get();
+  }
+
+  private long ticksToMillis(long ticks) {
+    long frequency = hrtFrequency.get();
+    if (frequency <= 0) {
+      return 0;
+    }
+    return (long) (ticks * 1000d / frequency);
+  }
+
+  public long getUptime() {
+    return ticksToMillis(hrtTicks.get());
+  }
+
+  public long getHeapUsed() {
+    return heapUsed.isEmpty() ? -1 : sum(heapUsed);
+  }
+
+  public long getHeapMax() {
+    return heapMax.isEmpty() ? -1 : sum(heapMax);
+  }
+
+  public long getNonHeapUsed() {
+    return get(nonHeapUsed);
+  }
+
+  public long getNonHeapMax() {
+    return get(nonHeapMax);
+  }
+
+  /**
+   * Returns the sum of all GC times in milliseconds
+   */
+  public long getGcTime() {
+    return ticksToMillis(sum(gcTime));
+  }
+
+  public long getGcCount() {
+    return sum(gcCount);
+  }
+
+  public long getThreadCount() {
+    return get(threadCount);
+  }
+
+  public long getPeakThreadCount() {
+    return get(peakThreadCount);
+  }
+
+  public long getTotalStartedThreadCount() {
+    return get(startedThreadCount);
+  }
+
+  public long getTotalLoadedClassCount() {
+    return get(loadedClassCount);
+  }
+
+  /**
+   * Returns the system properties published by the jvm,
+   * plus user.name derived from the perfdata directory.
+   */
+  public Map<String, String> getSystemProperties() {
+    Map<String, String> properties = perfData.findStrings("java.property.");
+    String user = perfData.getUser();
+    if (user != null) {
+      properties.put("user.name", user);
+    }
+    String command = perfData.findString("sun.rt.javaCommand");
+    if (command != null) {
+      properties.put("sun.java.command", command);
+    }
+    return properties;
+  }
+
+  /**
+   * Returns the jvm arguments, as a single space separated string
+   */
+  public String getVmArguments() {
+    return perfData.findString("java.rt.vmArgs");
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+import sun.tools.attach.HotSpotVirtualMachine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches the stacks via the "threaddump" command of the attach API (like jstack does),
+ * without loading the JMX management agent into the jvm.
+ *
+ * Each fetch is a single remote call, the selection and depth limit are applied while
+ * parsing the dump (see ThreadDumpParser). CPU times are only known if the jvm writes them
+ * into the dump (Java 11 and later), otherwise RUNNABLE threads are weighted by wall-clock time.
+ *
+ * Not thread-safe, it is only used by the sampling thread of the CPUSampler.
+ */
+public class AttachStackSource implements StackSource {
+
+  private final int vmid;
+  private final ThreadDumpParser parser = new ThreadDumpParser();
+  private HotSpotVirtualMachine vm;
+  private int roundTrips = 0;
+
+  /**
+   * Attaches to the given jvm.
+   *
+   * @param vmid
+   * @throws IOException if the jvm cannot be attached to or does not support thread dumps
+   */
+  public AttachStackSource(int vmid) throws IOException {
+    super();
+    this.vmid = vmid;
+    vm = attach();
+  }
+
+  private HotSpotVirtualMachine attach() throws IOException {
+    VirtualMachine virtualMachine;
+    try {
+      virtualMachine = VirtualMachine.attach(String.valueOf(vmid));
+    } catch (AttachNotSupportedException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    if (!(virtualMachine instanceof HotSpotVirtualMachine)) {
+      virtualMachine.detach();
+      throw new IOException("The jvm " + vmid + " does not support remote thread dumps");
+    }
+    return (HotSpotVirtualMachine) virtualMachine;
+  }
+
+  /**
+   * Fetches and parses a thread dump. The CPU times are part of the dump (if at all),
+   * so they are returned regardless of the cpuTimes parameter.
+   *
+   * @throws ConnectException if no thread dump can be fetched, even after attaching again
+   *                          (e.g. the jvm terminated or hangs)
+   */
+  @Override
+  public List<ThreadSample> fetch(ThreadSelector selector, int maxDepth, boolean cpuTimes)
+      throws Exception {
+    roundTrips = 0;
+    InputStream dump;
+    try {
+      if (vm == null) {
+        vm = attach();
+      }
+      roundTrips++;
+      dump = vm.remoteDataDump();
+    } catch (IOException e) {
+      // the attach listener may have been restarted, otherwise the jvm is gone or hangs
+      detach();
+      try {
+        vm = attach();
+        roundTrips++;
+        dump = vm.remoteDataDump();
+      } catch (IOException retryError) {
+        detach();
+        ConnectException connectException = new ConnectException(
+            "Could not fetch a thread dump of process " + vmid + ": " + retryError.getMessage());
+        connectException.initCause(retryError);
+        throw connectException;
+      }
+    }
+    try (InputStream in = dump) {
+      return parser.parse(in, selector, maxDepth);
+    }
+  }
+
+  @Override
+  public int getRoundTrips() {
+    return roundTrips;
+  }
+
+  private void detach() {
+    if (vm != null) {
+      try {
+        vm.detach();
+      } catch (IOException e) {
+        Logger.getLogger("jvmtop").log(Level.FINE, "error during detach (PID=" + vmid + ")", e);
+      }
+      vm = null;
+    }
+  }
+}
@@ -17,117 +17,840 @@
  */
 package com.jvmtop.profiler;
 
+import com.jvmtop.monitor.DaemonThreadFactory;
 import com.jvmtop.monitor.VMInfo;
 
-import java.lang.management.ThreadInfo;
+import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.net.ConnectException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static java.lang.Thread.State.RUNNABLE;
 
 /**
  * Experimental and very basic sampling-based CPU-Profiler.
  *
- * It uses package excludes to filter common 3rd party libraries which often
+ * Depending on the ProfileMode, it samples the CPU time of running threads
+ * or the wall-clock time of all, blocked or waiting threads.
+ * Additionally, the wall-clock time of all threads is accounted per thread state.
+ *
+ * It uses a PackageFilter to filter common 3rd party libraries which often
  * distort application problems.
  *
+ * Sampled stacks are interned into a FrameDictionary and stored in a StackTable,
+ * the flat method statistics are kept in primitive arrays indexed by method id.
+ * Memory therefore grows with the number of distinct stacks, not with the number of samples.
+ * For long sessions with an unbounded number of distinct frames, a top-k mode (see setTopK())
+ * tracks only the heaviest methods in a SpaceSaving sketch of fixed size instead.
+ *
+ * The stacks are fetched by a StackSource, via JMX (JmxStackSource) or via thread dumps
+ * of the attach API (AttachStackSource).
+ * The sampled threads can be restricted by name (see ThreadSelector) and the stack depth limited,
+ * which reduces the data transferred per sample.
+ *
+ * Samples are taken by a dedicated scheduler thread (see start()), independent of the rendering.
+ * The remote calls of a sample are done without holding the lock,
+ * which is only held to merge the sample into the aggregated data and to take snapshots.
+ *
  * @author paru
  */
 public class CPUSampler {
-  //TODO: these exception list should be expanded to the most common 3rd-party library packages
-  private List<String> filter = Arrays.asList(
-      "org.eclipse.", "org.apache.", "java.", "sun.", "com.sun.", "javax.",
-      "oracle.", "com.trilead.", "org.junit.", "org.mockito.",
-      "org.hibernate.", "com.ibm.", "com.caucho.");
-
-  private ThreadMXBean threadMxBean;
-  private ConcurrentMap<String, MethodStats> data = new ConcurrentHashMap<>();
-  private ConcurrentMap<Long, Long> threadCPUTime = new ConcurrentHashMap<>();
-  private AtomicLong totalThreadCPUTime = new AtomicLong();
-  private AtomicLong updateCount = new AtomicLong();
 
+  public static final long DEFAULT_INTERVAL_MILLIS = 100;
+
+  /**
+   * Call tree nodes below this share of the total CPU time are not part of a snapshot
+   */
+  private static final double MIN_CALL_TREE_RATIO = 0.005;
+
+  /**
+   * Maximum number of lines per method in a snapshot
+   */
+  private static final int MAX_LINES_PER_METHOD = 5;
+
+  private static final byte VERDICT_UNKNOWN = 0;
+  private static final byte VERDICT_SAMPLED = 1;
+  private static final byte VERDICT_FILTERED = 2;
+
+  /**
+   * Index of RUNNABLE threads in an idle frame in the state times,
+   * following the Thread.State ordinals
+   */
+  private static final int IDLE_STATE_INDEX = Thread.State.values().length;
+
+  /**
+   * Orders method statistics by their decayed hits, descending
+   */
+  private static final Comparator<MethodStats> RECENT_HITS_COMPARATOR =
+      new Comparator<MethodStats>() {
+        @Override
+        public int compare(MethodStats o1, MethodStats o2) {
+          return Double.compare(o2.getRecentHits(), o1.getRecentHits());
+        }
+      };
+
+  /**
+   * ThreadMXBean of jvmtop itself, to measure the overhead of the sampling thread
+   */
+  private static final ThreadMXBean LOCAL_THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+  private final StackSource stackSource;
+
+  // aggregated data, guarded by this
+  private PackageFilter packageFilter = PackageFilter.createDefault();
+  private FrameDictionary dictionary = new FrameDictionary();
+  private StackTable stackTable = new StackTable();
+  private long[] methodHits = new long[256];
+  private long[] frameHits = new long[256];
+  private volatile boolean lineStatsEnabled = false;
+  private byte[] methodVerdicts = new byte[256];
+  private int[] frameBuffer = new int[128];
+  private int[] pathBuffer = new int[128];
+  private long[] exportedWeights = new long[0];
+  private long totalThreadCPUTime = 0;
+  private long updateCount = 0;
+  private long sampledTimeNanos = 0;
+  private long startTimeMillis = 0;
+  private long intervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INTERVAL_MILLIS);
+  private final long[] stateTimes = new long[IDLE_STATE_INDEX + 1];
+  private DecayingCounters recentMethodHits = null;
+  private SpaceSaving methodSketch = null;
+  private Rollup rollup = null;
+  private String rollupPrefix = null;
+  private double forwardFactor = 1;
+  private CallTree callTree = new CallTree();
+  private long remoteCalls = 0;
+  private long samplerCpuNanos = 0;
+  private long samplerWallNanos = 0;
+  private volatile boolean callTreeEnabled = false;
+
+  // sampling state, only accessed by the sampling thread
+  private final Map<Long, Long> threadCPUTime = new HashMap<>();
+  private volatile ProfileMode profileMode = ProfileMode.CPU;
+  private volatile IdleFrameClassifier idleFrameClassifier = new DefaultIdleFrameClassifier();
+  private volatile ThreadSelector threadSelector = null;
+  private volatile int maxDepth = 0;
+  private long lastSampleNanos = 0;
+  private long nextSampleNanos = 0;
+  private volatile int sampleRoundTrips = 0;
+
+  private ScheduledExecutorService executor;
+
+  /**
+   * Creates a sampler fetching the stacks via JMX.
+   */
   public CPUSampler(VMInfo vmInfo) throws Exception {
+    this(new JmxStackSource(vmInfo));
+  }
+
+  public CPUSampler(StackSource stackSource) {
     super();
-    threadMxBean = vmInfo.getThreadMXBean();
+    this.stackSource = stackSource;
+  }
+
+  public boolean isCallTreeEnabled() {
+    return callTreeEnabled;
+  }
+
+  /**
+   * If enabled, the whole call path of each sample is aggregated into a CallTree,
+   * in addition to the flat method statistics.
+   */
+  public void setCallTreeEnabled(boolean callTreeEnabled) {
+    this.callTreeEnabled = callTreeEnabled;
+  }
+
+  public ProfileMode getProfileMode() {
+    return profileMode;
+  }
+
+  /**
+   * Sets which threads are sampled and whether they are weighted by CPU or wall-clock time.
+   * Defaults to ProfileMode.CPU, should be set before start().
+   */
+  public void setProfileMode(ProfileMode profileMode) {
+    this.profileMode = profileMode;
+  }
+
+  public IdleFrameClassifier getIdleFrameClassifier() {
+    return idleFrameClassifier;
+  }
+
+  /**
+   * Sets the classifier of the innermost frames which mark RUNNABLE threads as actually idle.
+   * Defaults to a DefaultIdleFrameClassifier.
+   */
+  public void setIdleFrameClassifier(IdleFrameClassifier idleFrameClassifier) {
+    this.idleFrameClassifier = idleFrameClassifier;
+  }
+
+  public boolean isLineStatsEnabled() {
+    return lineStatsEnabled;
+  }
+
+  /**
+   * If enabled, snapshots contain the hottest lines of each method (see MethodStats.getLines()).
+   * The time of each hot frame (i.e. method and line) is recorded regardless of this setting.
+   */
+  public void setLineStatsEnabled(boolean lineStatsEnabled) {
+    this.lineStatsEnabled = lineStatsEnabled;
+  }
+
+  /**
+   * Returns the window of the recent method statistics in milliseconds, 0 if disabled.
+   */
+  public synchronized long getWindowMillis() {
+    return recentMethodHits == null ? 0
+        : TimeUnit.NANOSECONDS.toMillis(recentMethodHits.getWindowNanos());
+  }
+
+  /**
+   * If set, the method statistics are additionally kept in exponentially decaying counters,
+   * i.e. a sample taken windowMillis ago only counts 1/e of a current one.
+   * The recent statistics start at the time of this call, 0 disables them.
+   */
+  public synchronized void setWindowMillis(long windowMillis) {
+    recentMethodHits = windowMillis <= 0 ? null
+        : new DecayingCounters(TimeUnit.MILLISECONDS.toNanos(windowMillis), System.nanoTime());
+  }
+
+  public synchronized Rollup getRollup() {
+    return rollup;
+  }
+
+  /**
+   * If set, the time of the hot frames is additionally summed up per class or package,
+   * snapshots contain the top groups (see ProfileSnapshot.getRollupEntries()).
+   * The rollup starts at the time of this call, null disables it.
+   *
+   * @param rollup
+   * @param prefix only groups starting with this prefix are part of snapshots (drill-down), null for all
+   */
+  public synchronized void setRollup(Rollup rollup, String prefix) {
+    this.rollup = rollup;
+    this.rollupPrefix = prefix;
+  }
+
+  /**
+   * Returns the number of methods tracked in top-k mode, 0 if disabled.
+   */
+  public synchronized int getTopK() {
+    return methodSketch == null ? 0 : methodSketch.getCapacity();
+  }
+
+  /**
+   * If set, only the hot frames are tracked, in a SpaceSaving sketch of k methods with a fixed
+   * memory budget. Neither stacks nor the call tree are recorded then, and the method statistics
+   * are upper bounds with an error (see MethodStats.getError()). 0 disables the top-k mode.
+   * Should be set before start().
+   */
+  public synchronized void setTopK(int k) {
+    methodSketch = k <= 0 ? null : new SpaceSaving(k);
+  }
+
+  public ThreadSelector getThreadSelector() {
+    return threadSelector;
+  }
+
+  /**
+   * If set, only the stacks of the selected threads are fetched and sampled,
+   * null samples all threads.
+   */
+  public void setThreadSelector(ThreadSelector threadSelector) {
+    this.threadSelector = threadSelector;
+  }
+
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * If set, only the innermost maxDepth frames of each stack are fetched, 0 fetches all frames.
+   * Sampled stacks are truncated at their outermost end then.
+   */
+  public void setMaxDepth(int maxDepth) {
+    this.maxDepth = maxDepth;
+  }
+
+  public synchronized PackageFilter getPackageFilter() {
+    return packageFilter;
+  }
+
+  /**
+   * Sets the filter deciding which frames are excluded from the method statistics
+   * and the call tree. Defaults to PackageFilter.createDefault().
+   */
+  public synchronized void setPackageFilter(PackageFilter packageFilter) {
+    this.packageFilter = packageFilter;
+    // the cached verdicts belong to the previous filter
+    Arrays.fill(methodVerdicts, VERDICT_UNKNOWN);
+  }
+
+  /**
+   * Starts sampling on a dedicated thread.
+   *
+   * Samples are scheduled at a fixed rate, each one shifted by a random offset of up to
+   * +/- jitterMillis to avoid sampling in lockstep with periodic activity of the target jvm.
+   * Samples which cannot be taken in time (slow jvm) are skipped instead of being taken in a burst.
+   *
+   * @param intervalMillis
+   * @param jitterMillis
+   */
+  public synchronized void start(long intervalMillis, long jitterMillis) {
+    if (intervalMillis <= 0) {
+      throw new IllegalArgumentException("Sampling interval must be positive");
+    }
+    if (executor != null) {
+      return;
+    }
+    final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    this.intervalNanos = intervalNanos;
+    startTimeMillis = System.currentTimeMillis();
+    final long jitterNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, jitterMillis));
+    final ScheduledExecutorService samplingExecutor =
+        Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("jvmtop-sampler"));
+    executor = samplingExecutor;
+    nextSampleNanos = System.nanoTime();
+    samplingExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          update();
+        } catch (Exception e) {
+          Logger.getLogger("jvmtop").log(Level.FINE, "error during sampling", e);
+        }
+        long now = System.nanoTime();
+        nextSampleNanos += intervalNanos;
+        if (nextSampleNanos < now) {
+          nextSampleNanos = now;
+        }
+        long jitter = jitterNanos == 0 ? 0
+            : ThreadLocalRandom.current().nextLong(2 * jitterNanos + 1) - jitterNanos;
+        if (!samplingExecutor.isShutdown()) {
+          samplingExecutor.schedule(this, Math.max(0, nextSampleNanos + jitter - now),
+              TimeUnit.NANOSECONDS);
+        }
+      }
+    });
+  }
+
+  /**
+   * Stops the sampling thread, the aggregated data is kept.
+   */
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Returns a consistent snapshot of the profiling data.
+   *
+   * Only the primitive counters are copied while holding the lock,
+   * the statistics are built, sorted and named afterwards, so sampling is not held up.
+   *
+   * @param limit maximum number of methods
+   * @return
+   */
+  public ProfileSnapshot snapshot(int limit) {
+    FrameDictionary.View names;
+    long[] hits;
+    double[] recentHits = null;
+    long[] lineHits = null;
+    CallTree callTreeCopy = null;
+    Rollup rollupCopy = null;
+    String prefix;
+    long windowNanos = 0;
+    double recentTotal = 0;
+    long totalTime;
+    long updates;
+    long sampledTime;
+    int stackCount;
+    ProfileMode mode;
+    Map<String, Long> stateTimeMap;
+    synchronized (this) {
+      if (methodSketch != null) {
+        return sketchSnapshot(limit);
+      }
+      long now = System.nanoTime();
+      names = dictionary.view();
+      // methodHits only covers methods which have been checked for being a hot frame
+      hits = Arrays.copyOf(methodHits, Math.min(names.getMethodCount(), methodHits.length));
+      if (recentMethodHits != null) {
+        recentHits = new double[hits.length];
+        for (int methodId = 0; methodId < hits.length; methodId++) {
+          if (hits[methodId] != 0) {
+            recentHits[methodId] = recentMethodHits.get(methodId, now);
+          }
+        }
+        windowNanos = recentMethodHits.getWindowNanos();
+        recentTotal = recentMethodHits.getTotal(now);
+      }
+      if (lineStatsEnabled) {
+        lineHits = Arrays.copyOf(frameHits, Math.min(names.getFrameCount(), frameHits.length));
+      }
+      if (callTreeEnabled) {
+        callTreeCopy = callTree.copy(MIN_CALL_TREE_RATIO);
+      }
+      if (rollup != null) {
+        rollupCopy = rollup.copyGroups();
+      }
+      prefix = rollupPrefix;
+      totalTime = totalThreadCPUTime;
+      updates = updateCount;
+      sampledTime = sampledTimeNanos;
+      stackCount = stackTable.size();
+      mode = profileMode;
+      stateTimeMap = getStateTimes();
+    }
+
+    List<MethodStats> statList = new ArrayList<>();
+    for (int methodId = 0; methodId < hits.length; methodId++) {
+      if (hits[methodId] != 0) {
+        MethodStats stats = new MethodStats(names.getClassName(methodId),
+            names.getMethodName(methodId), hits[methodId]);
+        if (recentHits != null) {
+          stats.setRecentHits(recentHits[methodId]);
+        }
+        statList.add(stats);
+      }
+    }
+    if (recentHits == null) {
+      Collections.sort(statList);
+    } else {
+      Collections.sort(statList, RECENT_HITS_COMPARATOR);
+    }
+    statList = statList.subList(0, Math.min(limit, statList.size()));
+    if (lineHits != null) {
+      addLineStats(statList, lineHits, names);
+    }
+    List<CallTree.Entry> callTreeEntries = callTreeCopy == null
+        ? Collections.<CallTree.Entry>emptyList()
+        : callTreeCopy.getHottestPaths(limit, MIN_CALL_TREE_RATIO, names);
+    List<GroupStats> rollupEntries = rollupCopy == null
+        ? Collections.<GroupStats>emptyList() : rollupCopy.getTop(limit, prefix);
+    return new ProfileSnapshot(
+        new ArrayList<>(statList),
+        callTreeEntries, totalTime, updates, sampledTime, sampleRoundTrips,
+        stackCount, mode, stateTimeMap, windowNanos, recentTotal, rollupEntries);
+  }
+
+  /**
+   * Adds the hottest lines to the given method statistics, taken from the hits of the hot frames.
+   */
+  private static void addLineStats(List<MethodStats> statList, long[] lineHits,
+                                   FrameDictionary.View names) {
+    Map<String, List<LineStats>> linesByMethod = new HashMap<>();
+    for (MethodStats stats : statList) {
+      linesByMethod.put(stats.getClassName() + "." + stats.getMethodName(),
+          new ArrayList<LineStats>());
+    }
+    for (int frameId = 0; frameId < lineHits.length; frameId++) {
+      if (lineHits[frameId] == 0) {
+        continue;
+      }
+      int methodId = names.getMethodId(frameId);
+      List<LineStats> lines = linesByMethod.get(
+          names.getClassName(methodId) + "." + names.getMethodName(methodId));
+      if (lines != null) {
+        lines.add(new LineStats(names.getFrame(frameId).getLineNumber(), lineHits[frameId]));
+      }
+    }
+    for (MethodStats stats : statList) {
+      List<LineStats> lines = linesByMethod.get(stats.getClassName() + "." + stats.getMethodName());
+      Collections.sort(lines);
+      stats.setLines(lines.subList(0, Math.min(MAX_LINES_PER_METHOD, lines.size())));
+    }
   }
 
-  public List<MethodStats> getTop(int limit) {
-    ArrayList<MethodStats> statList = new ArrayList<>(data.values());
-    Collections.sort(statList);
-    return statList.subList(0, Math.min(limit, statList.size()));
+  /**
+   * Returns the accounted time per thread state, see ProfileSnapshot.getStateTimes().
+   */
+  private Map<String, Long> getStateTimes() {
+    Map<String, Long> stateTimeMap = new LinkedHashMap<>();
+    for (Thread.State state : Thread.State.values()) {
+      if (stateTimes[state.ordinal()] > 0) {
+        stateTimeMap.put(state.name(), stateTimes[state.ordinal()]);
+      }
+      if (state == RUNNABLE && stateTimes[IDLE_STATE_INDEX] > 0) {
+        stateTimeMap.put("IDLE", stateTimes[IDLE_STATE_INDEX]);
+      }
+    }
+    return stateTimeMap;
   }
 
-  public long getTotal() {
-    return totalThreadCPUTime.get();
+  /**
+   * Returns the snapshot of the top-k mode, i.e. the heaviest methods of the sketch.
+   */
+  private ProfileSnapshot sketchSnapshot(int limit) {
+    List<MethodStats> statList = new ArrayList<>();
+    for (SpaceSaving.Entry entry : methodSketch.getTop(limit)) {
+      MethodStats stats = new MethodStats(entry.getClassName(), entry.getMethodName(),
+          entry.getCount());
+      stats.setError(entry.getError());
+      statList.add(stats);
+    }
+    return new ProfileSnapshot(statList, Collections.<CallTree.Entry>emptyList(),
+        totalThreadCPUTime, updateCount, sampledTimeNanos, sampleRoundTrips, 0, profileMode,
+        getStateTimes(), 0, 0, Collections.<GroupStats>emptyList());
   }
 
+  /**
+   * Takes a single sample.
+   *
+   * @throws Exception
+   */
   public void update() throws Exception {
-    boolean samplesAcquired = false;
-    ThreadInfo[] threadInfos = new ThreadInfo[0];
+    long samplerWallStart = System.nanoTime();
+    long samplerCpuStart = getSamplerCpuTime();
+    ProfileMode mode = profileMode;
+    IdleFrameClassifier classifier = idleFrameClassifier;
+    List<ThreadSample> threadSamples;
     try {
-      threadInfos = threadMxBean.dumpAllThreads(false, false);
-    } catch (UndeclaredThrowableException e) {
-      Throwable cause = e.getCause();
+      threadSamples = stackSource.fetch(threadSelector, maxDepth, mode.isCpuTime());
+    } catch (UndeclaredThrowableException | ConnectException e) {
+      Throwable cause = e instanceof ConnectException ? e : e.getCause();
       if (cause instanceof ConnectException
           || cause instanceof java.rmi.ConnectException) {
         System.out.println("ERROR: Attach connection failure - process terminated?");
+        // the console output is buffered, see JvmTop.run()
+        System.out.flush();
         System.exit(1);
       }
+      return;
+    } finally {
+      sampleRoundTrips = stackSource.getRoundTrips();
     }
-    for (ThreadInfo ti : threadInfos) {
-      long cpuTime = threadMxBean.getThreadCpuTime(ti.getThreadId());
-      Long tCPUTime = threadCPUTime.get(ti.getThreadId());
-      if (tCPUTime != null) {
-        Long deltaCpuTime = (cpuTime - tCPUTime);
-
-        if (ti.getStackTrace().length > 0 && ti.getThreadState() == RUNNABLE) {
-          for (StackTraceElement frame : ti.getStackTrace()) {
-            if (isReallySleeping(frame)) {
-              break;
-            }
-            if (isFiltered(frame)) {
-              continue;
-            }
-            String key = frame.getClassName() + "." + frame.getMethodName();
-            data.putIfAbsent(key, new MethodStats(frame));
-            data.get(key).getHits().addAndGet(deltaCpuTime);
-            totalThreadCPUTime.addAndGet(deltaCpuTime);
-            samplesAcquired = true;
-            break;
-          }
+    int roundTrips = sampleRoundTrips;
+
+    long now = System.nanoTime();
+    long elapsedNanos = lastSampleNanos == 0 ? 0 : now - lastSampleNanos;
+    lastSampleNanos = now;
+
+    List<StackTraceElement[]> sampledStacks = new ArrayList<>();
+    List<Long> sampledTimes = new ArrayList<>();
+    long[] sampleStateTimes = new long[stateTimes.length];
+    boolean cpuTimesFetched = false;
+    for (ThreadSample threadSample : threadSamples) {
+      StackTraceElement[] stackTrace = threadSample.getStackTrace();
+      Thread.State state = threadSample.getState();
+      boolean idle = stackTrace.length > 0 && classifier.isIdle(stackTrace[0]);
+      sampleStateTimes[idle && state == RUNNABLE ? IDLE_STATE_INDEX : state.ordinal()]
+          += elapsedNanos;
+
+      // wall-clock time, also in CPU mode if the source has no CPU times (thread dumps of Java 8)
+      long time = elapsedNanos;
+      long cpuTime = threadSample.getCpuTime();
+      if (mode.isCpuTime() && cpuTime != ThreadSample.UNKNOWN_CPU_TIME) {
+        cpuTimesFetched = true;
+        Long tCPUTime = threadCPUTime.put(threadSample.getThreadId(), cpuTime);
+        if (tCPUTime == null) {
+          continue;
         }
+        time = cpuTime - tCPUTime;
+      } else if (elapsedNanos == 0) {
+        continue;
+      }
+      if (stackTrace.length > 0 && mode.isSampled(state, idle)) {
+        sampledStacks.add(stackTrace);
+        sampledTimes.add(time);
       }
-      threadCPUTime.put(ti.getThreadId(), cpuTime);
     }
-    if (samplesAcquired) {
-      updateCount.incrementAndGet();
+    if (cpuTimesFetched && threadCPUTime.size() > threadSamples.size() * 2) {
+      // forget terminated threads, keeps the map bounded in long sessions
+      Map<Long, Long> aliveCPUTimes = new HashMap<>();
+      for (ThreadSample threadSample : threadSamples) {
+        Long tCPUTime = threadCPUTime.get(threadSample.getThreadId());
+        if (tCPUTime != null) {
+          aliveCPUTimes.put(threadSample.getThreadId(), tCPUTime);
+        }
+      }
+      threadCPUTime.clear();
+      threadCPUTime.putAll(aliveCPUTimes);
     }
-  }
 
-  public Long getUpdateCount() {
-    return updateCount.get();
+    long samplerCpu = getSamplerCpuTime() - samplerCpuStart;
+    long samplerWall = System.nanoTime() - samplerWallStart;
+    synchronized (this) {
+      remoteCalls += roundTrips;
+      samplerCpuNanos += samplerCpu;
+      samplerWallNanos += samplerWall;
+      for (int i = 0; i < stateTimes.length; i++) {
+        stateTimes[i] += sampleStateTimes[i];
+      }
+      if (recentMethodHits != null) {
+        forwardFactor = recentMethodHits.getForwardFactor(now);
+      }
+      boolean samplesAcquired = false;
+      for (int i = 0; i < sampledStacks.size(); i++) {
+        samplesAcquired |= addSample(sampledStacks.get(i), sampledTimes.get(i));
+      }
+      if (samplesAcquired) {
+        updateCount++;
+        sampledTimeNanos += elapsedNanos;
+      }
+    }
   }
 
-  private boolean isReallySleeping(StackTraceElement se) {
-    return se.getClassName().equals("sun.nio.ch.EPollArrayWrapper") &&
-        se.getMethodName().equals("epollWait");
+  /**
+   * Adds the stack of a single thread to the aggregated data.
+   * Every stack is recorded in the stack table (for the exports), while the flat statistics
+   * and the call tree attribute the time to the hot frame, i.e. the innermost frame which is not filtered.
+   * Stacks without a hot frame therefore only show up in the exports.
+   *
+   * @param stackTrace
+   * @param time       CPU or wall-clock nanoseconds, depending on the profile mode
+   * @return false if the sample was dropped (top-k mode and all frames are filtered)
+   */
+  private boolean addSample(StackTraceElement[] stackTrace, long time) {
+    if (methodSketch != null) {
+      return addSketchSample(stackTrace, time);
+    }
+    int depth = stackTrace.length;
+    if (frameBuffer.length < depth) {
+      frameBuffer = new int[depth];
+      pathBuffer = new int[depth];
+    }
+    int hotFrameIndex = -1;
+    for (int i = 0; i < depth; i++) {
+      int frameId = dictionary.intern(stackTrace[i]);
+      // the stack table stores the outermost caller first
+      frameBuffer[depth - 1 - i] = frameId;
+      if (hotFrameIndex < 0
+          && getVerdict(dictionary.getMethodId(frameId)) == VERDICT_SAMPLED) {
+        hotFrameIndex = depth - 1 - i;
+      }
+    }
+    stackTable.add(frameBuffer, depth, time);
+    if (hotFrameIndex < 0) {
+      return true;
+    }
+
+    int hotFrameId = frameBuffer[hotFrameIndex];
+    int hotMethodId = dictionary.getMethodId(hotFrameId);
+    methodHits[hotMethodId] += time;
+    if (hotFrameId >= frameHits.length) {
+      frameHits = Arrays.copyOf(frameHits, Math.max(frameHits.length * 2, hotFrameId + 1));
+    }
+    frameHits[hotFrameId] += time;
+    if (recentMethodHits != null) {
+      recentMethodHits.add(hotMethodId, time * forwardFactor);
+    }
+    if (rollup != null) {
+      rollup.add(hotMethodId, dictionary, time);
+    }
+    totalThreadCPUTime += time;
+
+    if (callTreeEnabled) {
+      int pathLength = 0;
+      for (int i = 0; i <= hotFrameIndex; i++) {
+        int methodId = dictionary.getMethodId(frameBuffer[i]);
+        if (getVerdict(methodId) == VERDICT_SAMPLED) {
+          pathBuffer[pathLength++] = methodId;
+        }
+      }
+      callTree.addSample(pathBuffer, pathLength, time);
+    }
+    return true;
   }
 
-  public boolean isFiltered(StackTraceElement se) {
-    for (String filteredPackage : filter) {
-      if (se.getClassName().startsWith(filteredPackage)) {
+  /**
+   * Adds the hot frame of a stack to the sketch of the top-k mode, bypassing the dictionary
+   * to keep the memory bounded: the filter verdicts come from the (capped) cache of the PackageFilter
+   * and only the k tracked methods are remembered by the sketch.
+   *
+   * @param stackTrace
+   * @param time
+   * @return false if all frames are filtered
+   */
+  private boolean addSketchSample(StackTraceElement[] stackTrace, long time) {
+    for (StackTraceElement frame : stackTrace) {
+      if (!packageFilter.isFiltered(frame.getClassName())) {
+        methodSketch.add(frame.getClassName(), frame.getMethodName(), time);
+        totalThreadCPUTime += time;
         return true;
       }
     }
     return false;
   }
-}
 
+  /**
+   * Returns the (cached) filter verdict of the given method.
+   */
+  private byte getVerdict(int methodId) {
+    if (methodId >= methodVerdicts.length) {
+      int capacity = Math.max(methodVerdicts.length * 2, methodId + 1);
+      methodVerdicts = Arrays.copyOf(methodVerdicts, capacity);
+      methodHits = Arrays.copyOf(methodHits, capacity);
+    }
+    byte verdict = methodVerdicts[methodId];
+    if (verdict == VERDICT_UNKNOWN) {
+      verdict = packageFilter.isFiltered(dictionary.getClassName(methodId))
+          ? VERDICT_FILTERED : VERDICT_SAMPLED;
+      methodVerdicts[methodId] = verdict;
+    }
+    return verdict;
+  }
+
+  /**
+   * Returns all sampled stacks in the folded format, i.e. the frames (outermost caller first)
+   * joined by ';', including filtered frames. The weights are CPU nanoseconds.
+   *
+   * @param sinceLastExport only return the weights added since the last call with sinceLastExport set
+   * @return weights keyed by folded stack
+   */
+  public synchronized Map<String, Long> getFoldedStacks(boolean sinceLastExport) {
+    if (sinceLastExport && exportedWeights.length < stackTable.size()) {
+      exportedWeights = Arrays.copyOf(exportedWeights, stackTable.size());
+    }
+    Map<String, Long> foldedStacks = new LinkedHashMap<>();
+    StringBuilder sb = new StringBuilder();
+    for (int stackId = 0; stackId < stackTable.size(); stackId++) {
+      long weight = stackTable.getWeight(stackId);
+      if (sinceLastExport) {
+        weight -= exportedWeights[stackId];
+        exportedWeights[stackId] = stackTable.getWeight(stackId);
+      }
+      if (weight <= 0) {
+        continue;
+      }
+      sb.setLength(0);
+      for (int frameId : stackTable.getStack(stackId)) {
+        int methodId = dictionary.getMethodId(frameId);
+        if (sb.length() > 0) {
+          sb.append(';');
+        }
+        sb.append(dictionary.getClassName(methodId)).append('.')
+            .append(dictionary.getMethodName(methodId));
+      }
+      // stacks which only differ in line numbers are merged
+      String foldedStack = sb.toString();
+      Long previousWeight = foldedStacks.get(foldedStack);
+      foldedStacks.put(foldedStack, previousWeight == null ? weight : previousWeight + weight);
+    }
+    return foldedStacks;
+  }
+
+  /**
+   * Returns the complete profile, to be saved and compared with another profile later.
+   *
+   * @return
+   */
+  public synchronized SavedProfile getSavedProfile() {
+    Map<String, Long> methods = new LinkedHashMap<>();
+    if (methodSketch != null) {
+      for (SpaceSaving.Entry entry : methodSketch.getTop(methodSketch.getCapacity())) {
+        methods.put(entry.getClassName() + "." + entry.getMethodName(), entry.getCount());
+      }
+    } else {
+      int methodCount = Math.min(dictionary.getMethodCount(), methodHits.length);
+      for (int methodId = 0; methodId < methodCount; methodId++) {
+        if (methodHits[methodId] != 0) {
+          methods.put(dictionary.getClassName(methodId) + "." + dictionary.getMethodName(methodId),
+              methodHits[methodId]);
+        }
+      }
+    }
+    return new SavedProfile(profileMode, sampledTimeNanos, totalThreadCPUTime, methods,
+        getFoldedStacks(false), updateCount, remoteCalls, samplerCpuNanos, samplerWallNanos);
+  }
+
+  /**
+   * Returns the complete profile and resets the aggregated data (see reset()) atomically,
+   * no sample gets lost or counted twice.
+   *
+   * @return
+   */
+  public synchronized SavedProfile rollover() {
+    SavedProfile savedProfile = getSavedProfile();
+    reset();
+    return savedProfile;
+  }
+
+  /**
+   * Discards all aggregated data, including the frame dictionary, so the memory used
+   * only depends on the samples taken afterwards. The configuration is kept.
+   */
+  public synchronized void reset() {
+    dictionary = new FrameDictionary();
+    stackTable = new StackTable();
+    callTree = new CallTree();
+    methodHits = new long[256];
+    frameHits = new long[256];
+    methodVerdicts = new byte[256];
+    exportedWeights = new long[0];
+    totalThreadCPUTime = 0;
+    updateCount = 0;
+    sampledTimeNanos = 0;
+    startTimeMillis = System.currentTimeMillis();
+    Arrays.fill(stateTimes, 0);
+    if (recentMethodHits != null) {
+      recentMethodHits = new DecayingCounters(recentMethodHits.getWindowNanos(), System.nanoTime());
+    }
+    if (methodSketch != null) {
+      methodSketch.clear();
+    }
+    if (rollup != null) {
+      rollup = new Rollup(rollup.getLevel(), rollup.getPackageDepth());
+    }
+    remoteCalls = 0;
+    samplerCpuNanos = 0;
+    samplerWallNanos = 0;
+  }
+
+  /**
+   * Returns all sampled stacks encoded in the pprof format (not compressed),
+   * see PprofWriter. Contrary to the folded stacks, line numbers are kept.
+   *
+   * @return
+   */
+  public synchronized byte[] getPprofProfile() {
+    return PprofWriter.encode(dictionary, stackTable, profileMode.getName(), startTimeMillis,
+        sampledTimeNanos, intervalNanos);
+  }
+
+  /**
+   * Returns the number of distinct sampled stacks.
+   */
+  public synchronized int getStackCount() {
+    return stackTable.size();
+  }
+
+  public synchronized long getUpdateCount() {
+    return updateCount;
+  }
+
+  /**
+   * Returns the number of remote calls the last sample needed.
+   */
+  public int getSampleRoundTrips() {
+    return sampleRoundTrips;
+  }
+
+  /**
+   * Returns the CPU time of the current thread of jvmtop, 0 if not supported.
+   */
+  private static long getSamplerCpuTime() {
+    return LOCAL_THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+        ? LOCAL_THREAD_MX_BEAN.getCurrentThreadCpuTime() : 0;
+  }
+
+  public synchronized boolean isFiltered(StackTraceElement se) {
+    return packageFilter.isFiltered(se.getClassName());
+  }
+}
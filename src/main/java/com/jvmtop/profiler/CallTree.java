@@ -0,0 +1,221 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Aggregates sampled call paths into a tree,
+ * tracking the self time (the node was the hot frame) and the inclusive time of each node.
+ * Nodes are identified by method ids of a FrameDictionary.
+ *
+ * Not thread-safe, CPUSampler guards it with its lock.
+ */
+public class CallTree {
+
+  private static final int[] NO_KEYS = new int[0];
+  private static final Node[] NO_CHILDREN = new Node[0];
+
+  /**
+   * A single method invocation context, i.e. a method reached via a specific path.
+   * Its children are kept sorted by their method id for a binary search, which avoids
+   * boxing the method ids on each sample.
+   */
+  private static final class Node {
+    private final int methodId;
+    private int[] keys = NO_KEYS;
+    private Node[] children = NO_CHILDREN;
+    private int childCount = 0;
+    private long selfTime = 0;
+    private long totalTime = 0;
+
+    private Node(int methodId) {
+      this.methodId = methodId;
+    }
+
+    private Node getChild(int methodId) {
+      int index = Arrays.binarySearch(keys, 0, childCount, methodId);
+      if (index >= 0) {
+        return children[index];
+      }
+      int insertAt = -index - 1;
+      if (childCount == keys.length) {
+        int capacity = Math.max(2, keys.length * 2);
+        keys = Arrays.copyOf(keys, capacity);
+        children = Arrays.copyOf(children, capacity);
+      }
+      System.arraycopy(keys, insertAt, keys, insertAt + 1, childCount - insertAt);
+      System.arraycopy(children, insertAt, children, insertAt + 1, childCount - insertAt);
+      Node child = new Node(methodId);
+      keys[insertAt] = methodId;
+      children[insertAt] = child;
+      childCount++;
+      return child;
+    }
+  }
+
+  /**
+   * Orders nodes by their inclusive time, descending
+   */
+  private static final Comparator<Node> TOTAL_TIME_COMPARATOR = new Comparator<Node>() {
+    @Override
+    public int compare(Node o1, Node o2) {
+      return Long.compare(o2.totalTime, o1.totalTime);
+    }
+  };
+
+  /**
+   * Immutable line of the rendered tree
+   */
+  public static final class Entry {
+    private final int depth;
+    private final String className;
+    private final String methodName;
+    private final long selfTime;
+    private final long totalTime;
+
+    private Entry(int depth, Node node, FrameDictionary.View dictionary) {
+      this.depth = depth;
+      this.className = dictionary.getClassName(node.methodId);
+      this.methodName = dictionary.getMethodName(node.methodId);
+      this.selfTime = node.selfTime;
+      this.totalTime = node.totalTime;
+    }
+
+    public int getDepth() {
+      return depth;
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    public String getMethodName() {
+      return methodName;
+    }
+
+    public long getSelfTime() {
+      return selfTime;
+    }
+
+    public long getTotalTime() {
+      return totalTime;
+    }
+  }
+
+  private final Node root;
+
+  public CallTree() {
+    this(new Node(-1));
+  }
+
+  private CallTree(Node root) {
+    super();
+    this.root = root;
+  }
+
+  /**
+   * Adds a sampled call path.
+   *
+   * @param methodIds the methods from the outermost caller down to the hot frame
+   * @param length    the number of valid entries in methodIds
+   * @param time
+   */
+  public void addSample(int[] methodIds, int length, long time) {
+    if (length == 0) {
+      return;
+    }
+    Node node = root;
+    node.totalTime += time;
+    for (int i = 0; i < length; i++) {
+      node = node.getChild(methodIds[i]);
+      node.totalTime += time;
+    }
+    node.selfTime += time;
+  }
+
+  public long getTotalTime() {
+    return root.totalTime;
+  }
+
+  /**
+   * Returns a copy containing only the nodes with at least minRatio of the total time,
+   * which is not affected by further samples. Copying does not sort or resolve any names,
+   * so the lock guarding this tree only needs to be held for the copy.
+   *
+   * @param minRatio
+   * @return
+   */
+  public CallTree copy(double minRatio) {
+    long minTime = (long) Math.ceil(root.totalTime * minRatio);
+    return new CallTree(copy(root, Math.max(1, minTime)));
+  }
+
+  private static Node copy(Node node, long minTime) {
+    Node copy = new Node(node.methodId);
+    copy.selfTime = node.selfTime;
+    copy.totalTime = node.totalTime;
+    for (int i = 0; i < node.childCount; i++) {
+      if (node.children[i].totalTime >= minTime) {
+        if (copy.childCount == copy.keys.length) {
+          int capacity = Math.max(2, copy.keys.length * 2);
+          copy.keys = Arrays.copyOf(copy.keys, capacity);
+          copy.children = Arrays.copyOf(copy.children, capacity);
+        }
+        copy.keys[copy.childCount] = node.keys[i];
+        copy.children[copy.childCount++] = copy(node.children[i], minTime);
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Returns the hottest paths in depth-first order, the children of a node ordered by their inclusive time.
+   * Nodes below minRatio of the total time are omitted.
+   *
+   * @param maxEntries
+   * @param minRatio
+   * @param dictionary resolves the method names
+   * @return
+   */
+  public List<Entry> getHottestPaths(int maxEntries, double minRatio,
+                                     FrameDictionary.View dictionary) {
+    List<Entry> entries = new ArrayList<>();
+    long minTime = (long) Math.ceil(root.totalTime * minRatio);
+    addEntries(entries, root, 0, maxEntries, Math.max(1, minTime), dictionary);
+    return entries;
+  }
+
+  private void addEntries(List<Entry> entries, Node node, int depth,
+                          int maxEntries, long minTime, FrameDictionary.View dictionary) {
+    List<Node> children = new ArrayList<>(
+        Arrays.asList(node.children).subList(0, node.childCount));
+    Collections.sort(children, TOTAL_TIME_COMPARATOR);
+    for (Node child : children) {
+      if (entries.size() >= maxEntries || child.totalTime < minTime) {
+        return;
+      }
+      entries.add(new Entry(depth, child, dictionary));
+      addEntries(entries, child, depth + 1, maxEntries, minTime, dictionary);
+    }
+  }
+}
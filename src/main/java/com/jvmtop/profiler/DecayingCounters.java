@@ -0,0 +1,118 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Arrays;
+
+/**
+ * Exponentially decaying counters, indexed by e.g. method id, using forward decay:
+ * a weight added at time t is stored as weight * exp((t - landmark) / window),
+ * and the decay is only applied when reading, by multiplying with exp(-(now - landmark) / window).
+ *
+ * Adding a weight therefore costs one multiplication (see getForwardFactor()),
+ * no counter has to be touched when time passes.
+ * When the forward factor gets too large, all counters are rescaled to a new landmark.
+ *
+ * Not thread-safe, CPUSampler guards it with its lock.
+ */
+public class DecayingCounters {
+
+  /**
+   * Forward factor above which the counters are rescaled to a new landmark (far from overflowing)
+   */
+  private static final double RESCALE_THRESHOLD = 1e100;
+
+  private final long windowNanos;
+  private long landmarkNanos;
+  private double[] values = new double[256];
+  private double total = 0;
+
+  /**
+   * @param windowNanos the mean lifetime of a weight, after it a weight has decayed to 1/e
+   * @param nowNanos    initial landmark, in System.nanoTime()
+   */
+  public DecayingCounters(long windowNanos, long nowNanos) {
+    super();
+    if (windowNanos <= 0) {
+      throw new IllegalArgumentException("Window must be positive");
+    }
+    this.windowNanos = windowNanos;
+    this.landmarkNanos = nowNanos;
+  }
+
+  public long getWindowNanos() {
+    return windowNanos;
+  }
+
+  /**
+   * Returns the factor the weights added at the given time have to be multiplied with
+   * before passing them to add(). Rescales the counters if necessary.
+   *
+   * @param nowNanos
+   * @return
+   */
+  public double getForwardFactor(long nowNanos) {
+    double factor = Math.exp((double) (nowNanos - landmarkNanos) / windowNanos);
+    if (factor > RESCALE_THRESHOLD) {
+      rescale(nowNanos);
+      factor = 1;
+    }
+    return factor;
+  }
+
+  /**
+   * Adds a weight which has already been multiplied with the forward factor.
+   *
+   * @param index
+   * @param scaledWeight
+   */
+  public void add(int index, double scaledWeight) {
+    if (index >= values.length) {
+      values = Arrays.copyOf(values, Math.max(values.length * 2, index + 1));
+    }
+    values[index] += scaledWeight;
+    total += scaledWeight;
+  }
+
+  /**
+   * Returns the decayed value of a counter at the given time.
+   */
+  public double get(int index, long nowNanos) {
+    return index < values.length ? values[index] * getBackwardFactor(nowNanos) : 0;
+  }
+
+  /**
+   * Returns the decayed sum of all counters at the given time.
+   */
+  public double getTotal(long nowNanos) {
+    return total * getBackwardFactor(nowNanos);
+  }
+
+  private double getBackwardFactor(long nowNanos) {
+    return Math.exp((double) (landmarkNanos - nowNanos) / windowNanos);
+  }
+
+  private void rescale(long nowNanos) {
+    double factor = getBackwardFactor(nowNanos);
+    for (int i = 0; i < values.length; i++) {
+      values[i] *= factor;
+    }
+    total *= factor;
+    landmarkNanos = nowNanos;
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Knows the common native methods threads wait in: selectors, socket reads and accepts,
+ * parking and monitor waits, across the jdk versions and platforms.
+ *
+ * Further methods can be added with addIdleMethod().
+ */
+public class DefaultIdleFrameClassifier implements IdleFrameClassifier {
+
+  private final Map<String, Set<String>> idleMethods = new HashMap<>();
+
+  public DefaultIdleFrameClassifier() {
+    super();
+    // selectors
+    addIdleMethod("sun.nio.ch.EPollArrayWrapper", "epollWait");
+    addIdleMethod("sun.nio.ch.EPoll", "wait");
+    addIdleMethod("sun.nio.ch.EPoll", "epollWait");
+    addIdleMethod("sun.nio.ch.KQueueArrayWrapper", "kevent0");
+    addIdleMethod("sun.nio.ch.KQueue", "poll");
+    addIdleMethod("sun.nio.ch.KQueue", "keventPoll");
+    addIdleMethod("sun.nio.ch.PollArrayWrapper", "poll0");
+    addIdleMethod("sun.nio.ch.WindowsSelectorImpl$SubSelector", "poll0");
+    addIdleMethod("sun.nio.ch.Net", "poll");
+    // socket reads and accepts
+    addIdleMethod("java.net.SocketInputStream", "socketRead0");
+    addIdleMethod("java.net.PlainSocketImpl", "socketAccept");
+    addIdleMethod("java.net.PlainSocketImpl", "accept0");
+    addIdleMethod("java.net.DualStackPlainSocketImpl", "accept0");
+    addIdleMethod("sun.nio.ch.Net", "accept");
+    addIdleMethod("sun.nio.ch.ServerSocketChannelImpl", "accept0");
+    addIdleMethod("sun.nio.ch.SocketDispatcher", "read0");
+    addIdleMethod("sun.nio.ch.NioSocketImpl", "park");
+    // parking, waiting and sleeping (usually reported as WAITING / TIMED_WAITING already)
+    addIdleMethod("sun.misc.Unsafe", "park");
+    addIdleMethod("jdk.internal.misc.Unsafe", "park");
+    addIdleMethod("java.lang.Object", "wait");
+    addIdleMethod("java.lang.Object", "wait0");
+    addIdleMethod("java.lang.Thread", "sleep");
+    addIdleMethod("java.lang.Thread", "sleep0");
+  }
+
+  /**
+   * Adds a method threads are idle in.
+   *
+   * @param className
+   * @param methodName
+   */
+  public void addIdleMethod(String className, String methodName) {
+    Set<String> methods = idleMethods.get(className);
+    if (methods == null) {
+      methods = new HashSet<>();
+      idleMethods.put(className, methods);
+    }
+    methods.add(methodName);
+  }
+
+  @Override
+  public boolean isIdle(StackTraceElement frame) {
+    Set<String> methods = idleMethods.get(frame.getClassName());
+    return methods != null && methods.contains(frame.getMethodName());
+  }
+}
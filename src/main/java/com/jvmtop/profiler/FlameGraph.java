@@ -0,0 +1,225 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a standalone, interactive flame graph as a single HTML file
+ * (inline SVG and JavaScript, no external dependencies).
+ *
+ * Hovering a frame shows its CPU share, clicking a frame zooms into it,
+ * clicking the bottom frame zooms out again.
+ */
+public class FlameGraph {
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private static final String HEAD = "<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n"
+      + "<title>%1$s</title>\n"
+      + "<style>\n"
+      + "body { font: 12px sans-serif; margin: 8px; }\n"
+      + "#chart rect { stroke: #fff; stroke-width: 0.5; cursor: pointer; }\n"
+      + "#chart text { pointer-events: none; font: 11px monospace; }\n"
+      + "#info { height: 18px; }\n"
+      + "</style>\n</head>\n<body>\n"
+      + "<h3>%1$s</h3>\n"
+      + "<div id=\"info\">Click a frame to zoom, click the bottom frame to zoom out.</div>\n"
+      + "<svg id=\"chart\" width=\"100%%\"></svg>\n"
+      + "<script>\nvar data = ";
+
+  private static final String SCRIPT = ";\n"
+      + "(function () {\n"
+      + "  var ns = 'http://www.w3.org/2000/svg', rowHeight = 17, charWidth = 7;\n"
+      + "  var svg = document.getElementById('chart'), info = document.getElementById('info');\n"
+      + "  function depth(node) {\n"
+      + "    var max = 0;\n"
+      + "    for (var i = 0; i < node.c.length; i++) max = Math.max(max, depth(node.c[i]));\n"
+      + "    return max + 1;\n"
+      + "  }\n"
+      + "  var maxDepth = depth(data);\n"
+      + "  svg.setAttribute('height', maxDepth * rowHeight);\n"
+      + "  function color(name) {\n"
+      + "    var h = 0;\n"
+      + "    for (var i = 0; i < name.length; i++) h = (h * 31 + name.charCodeAt(i)) & 0xffff;\n"
+      + "    return 'hsl(' + (h % 50) + ',80%,' + (55 + h % 20) + '%)';\n"
+      + "  }\n"
+      + "  function percent(value) {\n"
+      + "    return (data.v > 0 ? value * 100 / data.v : 0).toFixed(2) + '%';\n"
+      + "  }\n"
+      + "  function draw(node, x, width, level, zoomRoot) {\n"
+      + "    if (width < 0.5) return;\n"
+      + "    var g = document.createElementNS(ns, 'g');\n"
+      + "    var y = (maxDepth - level - 1) * rowHeight;\n"
+      + "    var rect = document.createElementNS(ns, 'rect');\n"
+      + "    rect.setAttribute('x', x);\n"
+      + "    rect.setAttribute('y', y);\n"
+      + "    rect.setAttribute('width', width);\n"
+      + "    rect.setAttribute('height', rowHeight - 1);\n"
+      + "    rect.setAttribute('fill', level == 0 ? '#ccc' : color(node.n));\n"
+      + "    var title = document.createElementNS(ns, 'title');\n"
+      + "    title.textContent = node.n + ' (' + percent(node.v) + ', ' + (node.v / 1e9).toFixed(2) + 's)';\n"
+      + "    rect.appendChild(title);\n"
+      + "    g.appendChild(rect);\n"
+      + "    var chars = Math.floor((width - 4) / charWidth);\n"
+      + "    if (chars >= 3) {\n"
+      + "      var text = document.createElementNS(ns, 'text');\n"
+      + "      text.setAttribute('x', x + 3);\n"
+      + "      text.setAttribute('y', y + rowHeight - 5);\n"
+      + "      text.textContent = node.n.length <= chars ? node.n : node.n.substring(0, chars - 2) + '..';\n"
+      + "      g.appendChild(text);\n"
+      + "    }\n"
+      + "    g.onclick = function () { render(node === zoomRoot ? data : node); };\n"
+      + "    g.onmouseover = function () { info.textContent = title.textContent; };\n"
+      + "    svg.appendChild(g);\n"
+      + "    var childX = x;\n"
+      + "    for (var i = 0; i < node.c.length; i++) {\n"
+      + "      var childWidth = node.v > 0 ? width * node.c[i].v / node.v : 0;\n"
+      + "      draw(node.c[i], childX, childWidth, level + 1, zoomRoot);\n"
+      + "      childX += childWidth;\n"
+      + "    }\n"
+      + "  }\n"
+      + "  function render(root) {\n"
+      + "    while (svg.firstChild) svg.removeChild(svg.firstChild);\n"
+      + "    draw(root, 0, svg.getBoundingClientRect().width, 0, root);\n"
+      + "  }\n"
+      + "  render(data);\n"
+      + "  window.onresize = function () { render(data); };\n"
+      + "})();\n"
+      + "</script>\n</body>\n</html>\n";
+
+  /**
+   * A frame of the merged stacks
+   */
+  private static final class Node {
+    private final String name;
+    private final Map<String, Node> children = new LinkedHashMap<>();
+    private long value = 0;
+
+    private Node(String name) {
+      this.name = name;
+    }
+  }
+
+  private FlameGraph() {
+  }
+
+  /**
+   * Writes the flame graph of the given folded stacks.
+   *
+   * @param foldedStacks weights keyed by folded stack, see CPUSampler.getFoldedStacks()
+   * @param title
+   * @param out
+   * @throws IOException
+   */
+  public static void write(Map<String, Long> foldedStacks, String title, Writer out)
+      throws IOException {
+    Node root = new Node("all");
+    for (Map.Entry<String, Long> entry : foldedStacks.entrySet()) {
+      long value = entry.getValue();
+      Node node = root;
+      node.value += value;
+      for (String frame : entry.getKey().split(";")) {
+        Node child = node.children.get(frame);
+        if (child == null) {
+          child = new Node(frame);
+          node.children.put(frame, child);
+        }
+        child.value += value;
+        node = child;
+      }
+    }
+
+    out.write(String.format(HEAD, escapeHtml(title)));
+    writeJson(root, out);
+    out.write(SCRIPT);
+  }
+
+  /**
+   * Writes the flame graph of the given folded stacks to a file.
+   *
+   * @param foldedStacks
+   * @param title
+   * @param file
+   * @throws IOException
+   */
+  public static void write(Map<String, Long> foldedStacks, String title, File file)
+      throws IOException {
+    try (Writer out = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(file), CHARSET))) {
+      write(foldedStacks, title, out);
+    }
+  }
+
+  private static void writeJson(Node node, Writer out) throws IOException {
+    out.write("{\"n\":\"");
+    out.write(escapeJs(node.name));
+    out.write("\",\"v\":");
+    out.write(Long.toString(node.value));
+    out.write(",\"c\":[");
+    // widest children first, like the hottest paths of the console view
+    List<Node> children = new ArrayList<>(node.children.values());
+    Collections.sort(children, new Comparator<Node>() {
+      @Override
+      public int compare(Node o1, Node o2) {
+        return Long.compare(o2.value, o1.value);
+      }
+    });
+    for (int i = 0; i < children.size(); i++) {
+      if (i > 0) {
+        out.write(',');
+      }
+      writeJson(children.get(i), out);
+    }
+    out.write("]}");
+  }
+
+  /**
+   * Escapes a string for a JavaScript string literal inside a script element.
+   */
+  private static String escapeJs(String str) {
+    StringBuilder sb = new StringBuilder(str.length());
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20 || c == '<' || c == '>' || c == '&') {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String escapeHtml(String str) {
+    return str.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+}
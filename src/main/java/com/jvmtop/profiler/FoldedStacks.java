@@ -0,0 +1,75 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Writes profiles in the "folded" (collapsed) stack format understood by common flame graph tools:
+ * <pre>
+ * outermost.Caller.method;some.Class.method;innermost.Class.method 123456
+ * </pre>
+ * one line per distinct stack, weighted by CPU nanoseconds.
+ * Lines of the same stack may occur more than once (e.g. when streaming), tools add them up.
+ */
+public class FoldedStacks {
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private FoldedStacks() {
+  }
+
+  /**
+   * Writes the given folded stacks.
+   *
+   * @param foldedStacks weights keyed by folded stack, see CPUSampler.getFoldedStacks()
+   * @param out
+   * @throws IOException
+   */
+  public static void write(Map<String, Long> foldedStacks, Writer out) throws IOException {
+    for (Map.Entry<String, Long> entry : foldedStacks.entrySet()) {
+      out.write(entry.getKey());
+      out.write(' ');
+      out.write(Long.toString(entry.getValue()));
+      out.write('\n');
+    }
+  }
+
+  /**
+   * Writes the given folded stacks to a file.
+   *
+   * @param foldedStacks
+   * @param file
+   * @param append       appends the stacks to an existing file instead of replacing it
+   * @throws IOException
+   */
+  public static void write(Map<String, Long> foldedStacks, File file, boolean append)
+      throws IOException {
+    try (Writer out = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(file, append), CHARSET))) {
+      write(foldedStacks, out);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns stack frames to dense int ids.
+ *
+ * Each distinct frame (class, method, file and line) gets a frame id,
+ * each distinct method (class and method name) a method id.
+ * Ids are assigned in ascending order starting at 0, so they can be used as array indexes.
+ *
+ * Looking up a known frame does not allocate.
+ *
+ * Not thread-safe, but ids are only appended: a View taken while holding the lock
+ * guarding the dictionary can be read afterwards without it.
+ */
+public class FrameDictionary {
+
+  private final Map<StackTraceElement, Integer> frameIds = new HashMap<>();
+  private final Map<String, Map<String, Integer>> methodIds = new HashMap<>();
+
+  private StackTraceElement[] frames = new StackTraceElement[256];
+  private int[] frameMethods = new int[256];
+  private int frameCount = 0;
+
+  private String[] methodClassNames = new String[256];
+  private String[] methodNames = new String[256];
+  private int methodCount = 0;
+
+  /**
+   * Returns the id of the given frame, assigning a new one if the frame is unknown.
+   *
+   * @param frame
+   * @return
+   */
+  public int intern(StackTraceElement frame) {
+    Integer frameId = frameIds.get(frame);
+    if (frameId != null) {
+      return frameId;
+    }
+    if (frameCount == frames.length) {
+      frames = Arrays.copyOf(frames, frameCount * 2);
+      frameMethods = Arrays.copyOf(frameMethods, frameCount * 2);
+    }
+    frames[frameCount] = frame;
+    frameMethods[frameCount] = internMethod(frame.getClassName(), frame.getMethodName());
+    frameIds.put(frame, frameCount);
+    return frameCount++;
+  }
+
+  private int internMethod(String className, String methodName) {
+    Map<String, Integer> classMethods = methodIds.get(className);
+    if (classMethods == null) {
+      classMethods = new HashMap<>();
+      methodIds.put(className, classMethods);
+    }
+    Integer methodId = classMethods.get(methodName);
+    if (methodId != null) {
+      return methodId;
+    }
+    if (methodCount == methodNames.length) {
+      methodClassNames = Arrays.copyOf(methodClassNames, methodCount * 2);
+      methodNames = Arrays.copyOf(methodNames, methodCount * 2);
+    }
+    methodClassNames[methodCount] = className;
+    methodNames[methodCount] = methodName;
+    classMethods.put(methodName, methodCount);
+    return methodCount++;
+  }
+
+  public StackTraceElement getFrame(int frameId) {
+    return frames[frameId];
+  }
+
+  public int getMethodId(int frameId) {
+    return frameMethods[frameId];
+  }
+
+  public String getClassName(int methodId) {
+    return methodClassNames[methodId];
+  }
+
+  public String getMethodName(int methodId) {
+    return methodNames[methodId];
+  }
+
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  public int getMethodCount() {
+    return methodCount;
+  }
+
+  /**
+   * Returns a read-only view of all frames and methods interned so far.
+   */
+  public View view() {
+    return new View(frames, frameMethods, frameCount, methodClassNames, methodNames, methodCount);
+  }
+
+  /**
+   * Read-only view of the ids assigned up to a certain point.
+   * The arrays are shared with the dictionary, which never changes an assigned slot
+   * and replaces (instead of modifying) an array when it grows.
+   */
+  public static final class View {
+    private final StackTraceElement[] frames;
+    private final int[] frameMethods;
+    private final int frameCount;
+    private final String[] methodClassNames;
+    private final String[] methodNames;
+    private final int methodCount;
+
+    private View(StackTraceElement[] frames, int[] frameMethods, int frameCount,
+                 String[] methodClassNames, String[] methodNames, int methodCount) {
+      this.frames = frames;
+      this.frameMethods = frameMethods;
+      this.frameCount = frameCount;
+      this.methodClassNames = methodClassNames;
+      this.methodNames = methodNames;
+      this.methodCount = methodCount;
+    }
+
+    public StackTraceElement getFrame(int frameId) {
+      return frames[frameId];
+    }
+
+    public int getMethodId(int frameId) {
+      return frameMethods[frameId];
+    }
+
+    public String getClassName(int methodId) {
+      return methodClassNames[methodId];
+    }
+
+    public String getMethodName(int methodId) {
+      return methodNames[methodId];
+    }
+
+    public int getFrameCount() {
+      return frameCount;
+    }
+
+    public int getMethodCount() {
+      return methodCount;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+/**
+ * Sampled time of a group of methods, i.e. a class or a package (see Rollup).
+ */
+public class GroupStats {
+
+  private final String name;
+  private final long hits;
+
+  public GroupStats(String name, long hits) {
+    super();
+    this.name = name;
+    this.hits = hits;
+  }
+
+  /**
+   * Returns the class name or package prefix, "" for the default package.
+   */
+  public String getName() {
+    return name;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+/**
+ * Classifies the innermost frame of a thread, deciding whether the thread is actually idle
+ * although it is reported as RUNNABLE (typically when waiting in native code).
+ *
+ * @see DefaultIdleFrameClassifier
+ */
+public interface IdleFrameClassifier {
+
+  /**
+   * Returns true if a thread executing the given (innermost) frame is idle.
+   *
+   * @param frame
+   * @return
+   */
+  boolean isIdle(StackTraceElement frame);
+}
@@ -0,0 +1,162 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import com.jvmtop.monitor.VMInfo;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fetches the stacks via the ThreadMXBean of the jvm, i.e. via the JMX management agent.
+ *
+ * Without selector and depth limit, all stacks are fetched with a single call.
+ * Otherwise the thread ids are fetched first, then just the stacks of the selected threads,
+ * up to the given depth. The selection is cached by thread id, so the names of the threads only
+ * have to be fetched for new threads (and after SELECTION_REFRESH_SAMPLES samples).
+ *
+ * Not thread-safe, it is only used by the sampling thread of the CPUSampler.
+ */
+public class JmxStackSource implements StackSource {
+
+  /**
+   * Number of samples after which the cached thread selection is refreshed (threads may be renamed)
+   */
+  private static final int SELECTION_REFRESH_SAMPLES = 100;
+
+  private final VMInfo vmInfo;
+  private final ThreadMXBean threadMxBean;
+  private final Map<Long, Boolean> threadSelection = new HashMap<>();
+  private ThreadSelector selectionSelector = null;
+  private int selectionAge = 0;
+  private int roundTrips = 0;
+
+  public JmxStackSource(VMInfo vmInfo) {
+    super();
+    this.vmInfo = vmInfo;
+    threadMxBean = vmInfo.getThreadMXBean();
+  }
+
+  @Override
+  public List<ThreadSample> fetch(ThreadSelector selector, int maxDepth, boolean cpuTimes)
+      throws Exception {
+    roundTrips = 0;
+    ThreadInfo[] threadInfos = fetchThreadInfos(selector, maxDepth);
+    long[] threadCpuTimes = null;
+    if (cpuTimes) {
+      long[] threadIds = new long[threadInfos.length];
+      for (int i = 0; i < threadInfos.length; i++) {
+        threadIds[i] = threadInfos[i].getThreadId();
+      }
+      // all thread CPU times with a single call, if supported by the jvm
+      threadCpuTimes = vmInfo.getThreadCpuTimes(threadIds);
+      roundTrips += vmInfo.isBulkThreadCpuTimeSupported() ? 1 : threadIds.length;
+    }
+    List<ThreadSample> samples = new ArrayList<>(threadInfos.length);
+    for (int i = 0; i < threadInfos.length; i++) {
+      ThreadInfo ti = threadInfos[i];
+      long cpuTime = ThreadSample.UNKNOWN_CPU_TIME;
+      if (threadCpuTimes != null) {
+        cpuTime = threadCpuTimes[i];
+        if (cpuTime < 0) {
+          // thread terminated in the meantime
+          continue;
+        }
+      }
+      samples.add(new ThreadSample(ti.getThreadId(), ti.getThreadName(), ti.getThreadState(),
+          ti.getStackTrace(), cpuTime));
+    }
+    return samples;
+  }
+
+  @Override
+  public int getRoundTrips() {
+    return roundTrips;
+  }
+
+  private ThreadInfo[] fetchThreadInfos(ThreadSelector selector, int depth) {
+    if (selector == null && depth <= 0) {
+      roundTrips++;
+      return threadMxBean.dumpAllThreads(false, false);
+    }
+    long[] threadIds = threadMxBean.getAllThreadIds();
+    roundTrips++;
+    if (selector != null) {
+      threadIds = selectThreads(selector, threadIds);
+    }
+    if (threadIds.length == 0) {
+      return new ThreadInfo[0];
+    }
+    ThreadInfo[] threadInfos = threadMxBean.getThreadInfo(threadIds,
+        depth <= 0 ? Integer.MAX_VALUE : depth);
+    roundTrips++;
+    // threads which terminated in the meantime are null
+    List<ThreadInfo> alive = new ArrayList<>(threadInfos.length);
+    for (ThreadInfo threadInfo : threadInfos) {
+      if (threadInfo != null) {
+        alive.add(threadInfo);
+      }
+    }
+    return alive.toArray(new ThreadInfo[alive.size()]);
+  }
+
+  /**
+   * Returns the ids of the threads selected by the given selector.
+   */
+  private long[] selectThreads(ThreadSelector selector, long[] threadIds) {
+    if (selector != selectionSelector || ++selectionAge >= SELECTION_REFRESH_SAMPLES
+        || threadSelection.size() > threadIds.length * 2) {
+      threadSelection.clear();
+      selectionSelector = selector;
+      selectionAge = 0;
+    }
+    List<Long> newThreadIds = new ArrayList<>();
+    for (long threadId : threadIds) {
+      if (!threadSelection.containsKey(threadId)) {
+        newThreadIds.add(threadId);
+      }
+    }
+    if (!newThreadIds.isEmpty()) {
+      long[] ids = new long[newThreadIds.size()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = newThreadIds.get(i);
+      }
+      // depth 0: just the names, without stacks
+      for (ThreadInfo threadInfo : threadMxBean.getThreadInfo(ids, 0)) {
+        if (threadInfo != null) {
+          threadSelection.put(threadInfo.getThreadId(),
+              selector.isSelected(threadInfo.getThreadName()));
+        }
+      }
+      roundTrips++;
+    }
+    long[] selected = new long[threadIds.length];
+    int count = 0;
+    for (long threadId : threadIds) {
+      if (Boolean.TRUE.equals(threadSelection.get(threadId))) {
+        selected[count++] = threadId;
+      }
+    }
+    return Arrays.copyOf(selected, count);
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+/**
+ * Sampled time of a single source line of a method.
+ */
+public class LineStats implements Comparable<LineStats> {
+
+  private final int lineNumber;
+  private final long hits;
+
+  public LineStats(int lineNumber, long hits) {
+    super();
+    this.lineNumber = lineNumber;
+    this.hits = hits;
+  }
+
+  /**
+   * Returns the line number, negative if unknown (-2 for native methods, see StackTraceElement)
+   */
+  public int getLineNumber() {
+    return lineNumber;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * Compares a LineStats object by its hits
+   */
+  @Override
+  public int compareTo(LineStats o) {
+    return Long.compare(o.hits, hits);
+  }
+}
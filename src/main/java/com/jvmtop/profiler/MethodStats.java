@@ -17,6 +17,8 @@
  */
 package com.jvmtop.profiler;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -28,12 +30,21 @@ public class MethodStats implements Comparable<MethodStats> {
   private AtomicLong hits = new AtomicLong();
   private String className;
   private String methodName;
+  private double recentHits = 0;
+  private long error = 0;
+  private List<LineStats> lines = Collections.emptyList();
 
   public MethodStats(StackTraceElement frame) {
     className = frame.getClassName();
     methodName = frame.getMethodName();
   }
 
+  public MethodStats(String className, String methodName, long hits) {
+    this.className = className;
+    this.methodName = methodName;
+    this.hits.set(hits);
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
@@ -80,6 +91,45 @@ public class MethodStats implements Comparable<MethodStats> {
     return hits;
   }
 
+  /**
+   * Returns the exponentially decayed hits, if a profile window is used (see DecayingCounters)
+   */
+  public double getRecentHits() {
+    return recentHits;
+  }
+
+  public void setRecentHits(double recentHits) {
+    this.recentHits = recentHits;
+  }
+
+  /**
+   * Returns the maximum overestimation of the hits, 0 if they are exact
+   */
+  public long getError() {
+    return error;
+  }
+
+  /**
+   * Marks the hits as approximated, see SpaceSaving.
+   *
+   * @param error maximum overestimation of the hits, which are an upper bound then
+   */
+  public void setError(long error) {
+    this.error = error;
+  }
+
+  /**
+   * Returns the hottest lines of the method, ordered by their hits.
+   * Empty unless line-level profiling is enabled.
+   */
+  public List<LineStats> getLines() {
+    return lines;
+  }
+
+  public void setLines(List<LineStats> lines) {
+    this.lines = Collections.unmodifiableList(lines);
+  }
+
   public String getClassName() {
     return className;
   }
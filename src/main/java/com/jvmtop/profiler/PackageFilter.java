@@ -0,0 +1,211 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which classes are filtered from the profile, based on include and exclude rules
+ * of class name prefixes (e.g. "org.apache.").
+ *
+ * The rule with the longest matching prefix wins, so an include rule like "org.apache.myapp."
+ * overrides the exclude rule "org.apache.". Classes without a matching rule are not filtered.
+ *
+ * The rules are kept in a prefix trie, a lookup therefore only depends on the length
+ * of the class name, not on the number of rules. Verdicts are additionally cached per class name
+ * (up to a fixed number of classes).
+ * Rules have to be added before the filter is used by a CPUSampler.
+ */
+public class PackageFilter {
+
+  /**
+   * The common 3rd-party library packages which often distort application problems
+   */
+  public static final List<String> DEFAULT_EXCLUDES = Arrays.asList(
+      "org.eclipse.", "org.apache.", "java.", "sun.", "com.sun.", "javax.",
+      "oracle.", "com.trilead.", "org.junit.", "org.mockito.",
+      "org.hibernate.", "com.ibm.", "com.caucho.");
+
+  /**
+   * The verdict cache is dropped when it exceeds this size (e.g. because of generated classes)
+   */
+  private static final int MAX_CACHED_VERDICTS = 65536;
+
+  private static final byte RULE_NONE = 0;
+  private static final byte RULE_INCLUDE = 1;
+  private static final byte RULE_EXCLUDE = 2;
+
+  /**
+   * A trie node, its children are kept sorted by their character for a binary search
+   */
+  private static final class Node {
+    private char[] keys = new char[0];
+    private Node[] children = new Node[0];
+    private byte rule = RULE_NONE;
+
+    private Node child(char c) {
+      int index = Arrays.binarySearch(keys, c);
+      return index < 0 ? null : children[index];
+    }
+
+    private Node getOrAddChild(char c) {
+      int index = Arrays.binarySearch(keys, c);
+      if (index >= 0) {
+        return children[index];
+      }
+      int insertAt = -index - 1;
+      char[] newKeys = new char[keys.length + 1];
+      Node[] newChildren = new Node[children.length + 1];
+      System.arraycopy(keys, 0, newKeys, 0, insertAt);
+      System.arraycopy(children, 0, newChildren, 0, insertAt);
+      System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+      System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+      Node node = new Node();
+      newKeys[insertAt] = c;
+      newChildren[insertAt] = node;
+      keys = newKeys;
+      children = newChildren;
+      return node;
+    }
+  }
+
+  private final Node root = new Node();
+  private final Map<String, Boolean> verdictCache = new ConcurrentHashMap<>();
+  private int ruleCount = 0;
+
+  /**
+   * Creates a filter with the default excludes.
+   */
+  public static PackageFilter createDefault() {
+    PackageFilter packageFilter = new PackageFilter();
+    for (String prefix : DEFAULT_EXCLUDES) {
+      packageFilter.addExclude(prefix);
+    }
+    return packageFilter;
+  }
+
+  /**
+   * Classes starting with the given prefix are filtered (unless a longer include prefix matches).
+   */
+  public void addExclude(String prefix) {
+    addRule(prefix, RULE_EXCLUDE);
+  }
+
+  /**
+   * Classes starting with the given prefix are not filtered (unless a longer exclude prefix matches).
+   */
+  public void addInclude(String prefix) {
+    addRule(prefix, RULE_INCLUDE);
+  }
+
+  private void addRule(String prefix, byte rule) {
+    Node node = root;
+    for (int i = 0; i < prefix.length(); i++) {
+      node = node.getOrAddChild(prefix.charAt(i));
+    }
+    if (node.rule == RULE_NONE) {
+      ruleCount++;
+    }
+    node.rule = rule;
+    verdictCache.clear();
+  }
+
+  /**
+   * Adds the rules of the given file, one per line:
+   * <pre>
+   * # comment
+   * org.apache.          exclude
+   * -org.hibernate.      exclude
+   * +org.apache.myapp.   include
+   * </pre>
+   *
+   * @param file
+   * @throws IOException
+   */
+  public void load(File file) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), Charset.forName("UTF-8")))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        if (line.startsWith("+")) {
+          addInclude(line.substring(1).trim());
+        } else if (line.startsWith("-")) {
+          addExclude(line.substring(1).trim());
+        } else {
+          addExclude(line);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of distinct prefixes.
+   */
+  public int getRuleCount() {
+    return ruleCount;
+  }
+
+  /**
+   * Returns true if the given class is excluded from the profile.
+   *
+   * @param className
+   * @return
+   */
+  public boolean isFiltered(String className) {
+    Boolean verdict = verdictCache.get(className);
+    if (verdict == null) {
+      verdict = match(className) == RULE_EXCLUDE;
+      if (verdictCache.size() >= MAX_CACHED_VERDICTS) {
+        verdictCache.clear();
+      }
+      verdictCache.put(className, verdict);
+    }
+    return verdict;
+  }
+
+  /**
+   * Returns the rule of the longest prefix matching the class name.
+   */
+  private byte match(String className) {
+    byte rule = root.rule;
+    Node node = root;
+    for (int i = 0; i < className.length(); i++) {
+      node = node.child(className.charAt(i));
+      if (node == null) {
+        break;
+      }
+      if (node.rule != RULE_NONE) {
+        rule = node.rule;
+      }
+    }
+    return rule;
+  }
+}
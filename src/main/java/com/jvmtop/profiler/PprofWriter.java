@@ -0,0 +1,188 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes sampled stacks in the pprof format
+ * (see https://github.com/google/pprof/blob/master/proto/profile.proto).
+ *
+ * Each distinct frame becomes a location (with its line number), each method a function.
+ * Every stack becomes a sample with two values: the number of samples and the sampled
+ * (CPU or wall-clock) nanoseconds.
+ */
+public class PprofWriter {
+
+  // Profile
+  private static final int PROFILE_SAMPLE_TYPE = 1;
+  private static final int PROFILE_SAMPLE = 2;
+  private static final int PROFILE_LOCATION = 4;
+  private static final int PROFILE_FUNCTION = 5;
+  private static final int PROFILE_STRING_TABLE = 6;
+  private static final int PROFILE_TIME_NANOS = 9;
+  private static final int PROFILE_DURATION_NANOS = 10;
+  private static final int PROFILE_PERIOD_TYPE = 11;
+  private static final int PROFILE_PERIOD = 12;
+  private static final int PROFILE_DEFAULT_SAMPLE_TYPE = 14;
+  // ValueType
+  private static final int VALUE_TYPE_TYPE = 1;
+  private static final int VALUE_TYPE_UNIT = 2;
+  // Sample
+  private static final int SAMPLE_LOCATION_ID = 1;
+  private static final int SAMPLE_VALUE = 2;
+  // Location
+  private static final int LOCATION_ID = 1;
+  private static final int LOCATION_LINE = 4;
+  // Line
+  private static final int LINE_FUNCTION_ID = 1;
+  private static final int LINE_LINE = 2;
+  // Function
+  private static final int FUNCTION_ID = 1;
+  private static final int FUNCTION_NAME = 2;
+  private static final int FUNCTION_SYSTEM_NAME = 3;
+  private static final int FUNCTION_FILENAME = 4;
+
+  private final ProtobufWriter profile = new ProtobufWriter();
+  private final Map<String, Integer> strings = new HashMap<>();
+  private final ProtobufWriter stringTable = new ProtobufWriter();
+
+  private PprofWriter() {
+    // index 0 has to be the empty string
+    string("");
+  }
+
+  /**
+   * Encodes the given profile data.
+   *
+   * @param dictionary
+   * @param stackTable
+   * @param sampleType       type of the weights, e.g. "cpu" or "wall" (in nanoseconds)
+   * @param startTimeMillis  start of the profiling (wall-clock)
+   * @param durationNanos    sampled time
+   * @param periodNanos      sampling interval
+   * @return the encoded (not compressed) profile
+   */
+  public static byte[] encode(FrameDictionary dictionary, StackTable stackTable, String sampleType,
+                              long startTimeMillis, long durationNanos, long periodNanos) {
+    return new PprofWriter().encodeProfile(dictionary, stackTable, sampleType,
+        startTimeMillis, durationNanos, periodNanos);
+  }
+
+  /**
+   * Writes an encoded profile gzip compressed, as expected by the pprof tools.
+   *
+   * @param encodedProfile
+   * @param file
+   * @throws IOException
+   */
+  public static void write(byte[] encodedProfile, File file) throws IOException {
+    try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+      out.write(encodedProfile);
+    }
+  }
+
+  private byte[] encodeProfile(FrameDictionary dictionary, StackTable stackTable, String sampleType,
+                               long startTimeMillis, long durationNanos, long periodNanos) {
+    profile.writeMessage(PROFILE_SAMPLE_TYPE, valueType("samples", "count"));
+    profile.writeMessage(PROFILE_SAMPLE_TYPE, valueType(sampleType, "nanoseconds"));
+
+    long[] locationIds = new long[16];
+    long[] values = new long[2];
+    for (int stackId = 0; stackId < stackTable.size(); stackId++) {
+      int[] stack = stackTable.getStack(stackId);
+      if (locationIds.length < stack.length) {
+        locationIds = new long[stack.length];
+      }
+      // pprof expects the innermost frame first, the stack table stores the outermost first
+      for (int i = 0; i < stack.length; i++) {
+        locationIds[i] = stack[stack.length - 1 - i] + 1;
+      }
+      values[0] = stackTable.getCount(stackId);
+      values[1] = stackTable.getWeight(stackId);
+      profile.writeMessage(PROFILE_SAMPLE, new ProtobufWriter()
+          .writePackedInt64(SAMPLE_LOCATION_ID, locationIds, stack.length)
+          .writePackedInt64(SAMPLE_VALUE, values, values.length));
+    }
+
+    // ids must not be 0, so they are offset by one
+    for (int frameId = 0; frameId < dictionary.getFrameCount(); frameId++) {
+      StackTraceElement frame = dictionary.getFrame(frameId);
+      profile.writeMessage(PROFILE_LOCATION, new ProtobufWriter()
+          .writeInt64(LOCATION_ID, frameId + 1)
+          .writeMessage(LOCATION_LINE, new ProtobufWriter()
+              .writeInt64(LINE_FUNCTION_ID, dictionary.getMethodId(frameId) + 1)
+              .writeInt64(LINE_LINE, Math.max(0, frame.getLineNumber()))));
+    }
+
+    String[] fileNames = new String[dictionary.getMethodCount()];
+    for (int frameId = 0; frameId < dictionary.getFrameCount(); frameId++) {
+      int methodId = dictionary.getMethodId(frameId);
+      if (fileNames[methodId] == null) {
+        fileNames[methodId] = dictionary.getFrame(frameId).getFileName();
+      }
+    }
+    for (int methodId = 0; methodId < dictionary.getMethodCount(); methodId++) {
+      long name = string(dictionary.getClassName(methodId) + "." + dictionary.getMethodName(methodId));
+      profile.writeMessage(PROFILE_FUNCTION, new ProtobufWriter()
+          .writeInt64(FUNCTION_ID, methodId + 1)
+          .writeInt64(FUNCTION_NAME, name)
+          .writeInt64(FUNCTION_SYSTEM_NAME, name)
+          .writeInt64(FUNCTION_FILENAME, fileNames[methodId] == null ? 0 : string(fileNames[methodId])));
+    }
+
+    profile.writeInt64(PROFILE_TIME_NANOS, startTimeMillis * 1000000L);
+    profile.writeInt64(PROFILE_DURATION_NANOS, durationNanos);
+    profile.writeMessage(PROFILE_PERIOD_TYPE, valueType(sampleType, "nanoseconds"));
+    profile.writeInt64(PROFILE_PERIOD, periodNanos);
+    profile.writeInt64(PROFILE_DEFAULT_SAMPLE_TYPE, string(sampleType));
+
+    // the string table is complete only now, the field order does not matter for protobuf
+    byte[] profileBytes = profile.toByteArray();
+    byte[] stringTableBytes = stringTable.toByteArray();
+    byte[] result = new byte[profileBytes.length + stringTableBytes.length];
+    System.arraycopy(profileBytes, 0, result, 0, profileBytes.length);
+    System.arraycopy(stringTableBytes, 0, result, profileBytes.length, stringTableBytes.length);
+    return result;
+  }
+
+  private ProtobufWriter valueType(String type, String unit) {
+    return new ProtobufWriter()
+        .writeInt64(VALUE_TYPE_TYPE, string(type))
+        .writeInt64(VALUE_TYPE_UNIT, string(unit));
+  }
+
+  /**
+   * Returns the string table index of the given string, adding it if necessary.
+   */
+  private long string(String str) {
+    Integer index = strings.get(str);
+    if (index == null) {
+      index = strings.size();
+      strings.put(str, index);
+      stringTable.writeString(PROFILE_STRING_TABLE, str);
+    }
+    return index;
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Locale;
+
+/**
+ * Decides how the stacks of the profiled jvm are fetched, see StackSource.
+ */
+public enum ProfileBackend {
+  /**
+   * ThreadMXBean via the JMX management agent, which is loaded into the jvm if necessary
+   */
+  JMX("jmx"),
+  /**
+   * thread dumps via the attach API, without the JMX management agent
+   */
+  ATTACH("attach");
+
+  private final String name;
+
+  private ProfileBackend(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Returns the lowercase name, used on the command line.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Parses the name of a backend (case-insensitive).
+   *
+   * @param name
+   * @return
+   * @throws IllegalArgumentException if there is no such backend
+   */
+  public static ProfileBackend parse(String name) {
+    for (ProfileBackend backend : values()) {
+      if (backend.name.equals(name.toLowerCase(Locale.US))) {
+        return backend;
+      }
+    }
+    throw new IllegalArgumentException("Unknown profile backend " + name
+        + ", expected one of jmx, attach");
+  }
+}
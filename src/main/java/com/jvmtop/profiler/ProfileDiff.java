@@ -0,0 +1,170 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares two saved profiles per method and per stack.
+ *
+ * As the profiles usually cover different durations, times are compared as rates,
+ * i.e. milliseconds per second of sampled wall-clock time (for CPU profiles: thousandths of a core),
+ * and as their share of the total time of their profile.
+ * Deltas are ordered by the rate increase, so the biggest regression comes first.
+ */
+public class ProfileDiff {
+
+  /**
+   * Orders deltas by their rate increase, descending
+   */
+  private static final Comparator<Entry> REGRESSION_COMPARATOR = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry o1, Entry o2) {
+      return Double.compare(o2.getDeltaRate(), o1.getDeltaRate());
+    }
+  };
+
+  /**
+   * Immutable delta of a method or stack
+   */
+  public static final class Entry {
+    private final String name;
+    private final double beforeRate;
+    private final double afterRate;
+    private final double beforeShare;
+    private final double afterShare;
+
+    private Entry(String name, double beforeRate, double afterRate,
+                  double beforeShare, double afterShare) {
+      this.name = name;
+      this.beforeRate = beforeRate;
+      this.afterRate = afterRate;
+      this.beforeShare = beforeShare;
+      this.afterShare = afterShare;
+    }
+
+    /**
+     * Returns the method ("class.method") or folded stack.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Returns the milliseconds per sampled second in the first profile.
+     */
+    public double getBeforeRate() {
+      return beforeRate;
+    }
+
+    /**
+     * Returns the milliseconds per sampled second in the second profile.
+     */
+    public double getAfterRate() {
+      return afterRate;
+    }
+
+    public double getDeltaRate() {
+      return afterRate - beforeRate;
+    }
+
+    /**
+     * Returns the share (0..1) of the total time in the first profile.
+     */
+    public double getBeforeShare() {
+      return beforeShare;
+    }
+
+    /**
+     * Returns the share (0..1) of the total time in the second profile.
+     */
+    public double getAfterShare() {
+      return afterShare;
+    }
+
+    public double getDeltaShare() {
+      return afterShare - beforeShare;
+    }
+  }
+
+  private final SavedProfile before;
+  private final SavedProfile after;
+
+  public ProfileDiff(SavedProfile before, SavedProfile after) {
+    super();
+    this.before = before;
+    this.after = after;
+  }
+
+  public SavedProfile getBefore() {
+    return before;
+  }
+
+  public SavedProfile getAfter() {
+    return after;
+  }
+
+  /**
+   * Returns the deltas of all methods, biggest regression first.
+   */
+  public List<Entry> getMethodDeltas() {
+    return diff(before.getMethods(), after.getMethods());
+  }
+
+  /**
+   * Returns the deltas of all stacks, biggest regression first.
+   */
+  public List<Entry> getStackDeltas() {
+    return diff(before.getStacks(), after.getStacks());
+  }
+
+  private List<Entry> diff(Map<String, Long> beforeTimes, Map<String, Long> afterTimes) {
+    Set<String> names = new LinkedHashSet<>(beforeTimes.keySet());
+    names.addAll(afterTimes.keySet());
+    List<Entry> entries = new ArrayList<>(names.size());
+    for (String name : names) {
+      long beforeTime = getTime(beforeTimes, name);
+      long afterTime = getTime(afterTimes, name);
+      entries.add(new Entry(name,
+          toRate(beforeTime, before), toRate(afterTime, after),
+          toShare(beforeTime, before), toShare(afterTime, after)));
+    }
+    Collections.sort(entries, REGRESSION_COMPARATOR);
+    return entries;
+  }
+
+  private static long getTime(Map<String, Long> times, String name) {
+    Long time = times.get(name);
+    return time == null ? 0 : time;
+  }
+
+  private static double toRate(long time, SavedProfile profile) {
+    return profile.getSampledTimeNanos() > 0
+        ? (double) time / profile.getSampledTimeNanos() * 1000 : 0;
+  }
+
+  private static double toShare(long time, SavedProfile profile) {
+    return profile.getTotalTime() > 0 ? (double) time / profile.getTotalTime() : 0;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Writes the profile of a CPUSampler to files, either when jvmtop exits (via a shutdown hook)
+ * or - for folded stacks - streamed at each refresh interval.
+ */
+public class ProfileExporter {
+
+  private final CPUSampler cpuSampler;
+  private final String title;
+  private File foldedStacksFile;
+  private boolean streamFoldedStacks = false;
+  private File flameGraphFile;
+  private File pprofFile;
+  private File savedProfileFile;
+  private boolean started = false;
+
+  public ProfileExporter(CPUSampler cpuSampler, String title) {
+    super();
+    this.cpuSampler = cpuSampler;
+    this.title = title;
+  }
+
+  public File getFoldedStacksFile() {
+    return foldedStacksFile;
+  }
+
+  public void setFoldedStacksFile(File foldedStacksFile) {
+    this.foldedStacksFile = foldedStacksFile;
+  }
+
+  public boolean isStreamFoldedStacks() {
+    return streamFoldedStacks;
+  }
+
+  /**
+   * If enabled, the folded stacks sampled since the previous interval are appended at each interval,
+   * otherwise all folded stacks are written on exit.
+   */
+  public void setStreamFoldedStacks(boolean streamFoldedStacks) {
+    this.streamFoldedStacks = streamFoldedStacks;
+  }
+
+  public File getFlameGraphFile() {
+    return flameGraphFile;
+  }
+
+  public void setFlameGraphFile(File flameGraphFile) {
+    this.flameGraphFile = flameGraphFile;
+  }
+
+  public File getPprofFile() {
+    return pprofFile;
+  }
+
+  /**
+   * Sets the file the profile is written to in the (gzip compressed) pprof format.
+   */
+  public void setPprofFile(File pprofFile) {
+    this.pprofFile = pprofFile;
+  }
+
+  public File getSavedProfileFile() {
+    return savedProfileFile;
+  }
+
+  /**
+   * Sets the file the profile is saved to, to be compared with another profile later
+   * (see SavedProfile and ProfileDiff).
+   */
+  public void setSavedProfileFile(File savedProfileFile) {
+    this.savedProfileFile = savedProfileFile;
+  }
+
+  public boolean isEnabled() {
+    return foldedStacksFile != null || flameGraphFile != null || pprofFile != null
+        || savedProfileFile != null;
+  }
+
+  /**
+   * Prepares the output files and registers the shutdown hook writing the final export.
+   * Does nothing if no export is configured or the exporter has already been started.
+   *
+   * @throws IOException
+   */
+  public synchronized void start() throws IOException {
+    if (started || !isEnabled()) {
+      return;
+    }
+    started = true;
+    if (foldedStacksFile != null && streamFoldedStacks) {
+      // truncate, the intervals are appended afterwards
+      FoldedStacks.write(Collections.<String, Long>emptyMap(), foldedStacksFile, false);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread("jvmtop-profile-export") {
+      @Override
+      public void run() {
+        try {
+          exportFinal();
+        } catch (IOException e) {
+          System.err.println("ERROR: Could not write profile: " + e.getMessage());
+        }
+      }
+    });
+  }
+
+  /**
+   * Appends the folded stacks sampled since the previous interval, if streaming is enabled.
+   *
+   * @throws IOException
+   */
+  public synchronized void exportInterval() throws IOException {
+    if (started && foldedStacksFile != null && streamFoldedStacks) {
+      FoldedStacks.write(cpuSampler.getFoldedStacks(true), foldedStacksFile, true);
+    }
+  }
+
+  /**
+   * Writes all configured exports of the complete profile.
+   *
+   * @throws IOException
+   */
+  public synchronized void exportFinal() throws IOException {
+    if (foldedStacksFile != null) {
+      Map<String, Long> foldedStacks = cpuSampler.getFoldedStacks(streamFoldedStacks);
+      FoldedStacks.write(foldedStacks, foldedStacksFile, streamFoldedStacks);
+    }
+    if (flameGraphFile != null) {
+      FlameGraph.write(cpuSampler.getFoldedStacks(false), title, flameGraphFile);
+    }
+    if (pprofFile != null) {
+      PprofWriter.write(cpuSampler.getPprofProfile(), pprofFile);
+    }
+    if (savedProfileFile != null) {
+      cpuSampler.getSavedProfile().save(savedProfileFile);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Locale;
+
+/**
+ * Decides which threads a sample is taken of and how the sample is weighted.
+ *
+ * CPU mode weights RUNNABLE threads by their consumed CPU time and skips threads which are
+ * RUNNABLE but actually idle (e.g. waiting for a socket in native code).
+ * The other modes weight each thread by the wall-clock time since the previous sample.
+ */
+public enum ProfileMode {
+  /**
+   * on-CPU time of RUNNABLE threads
+   */
+  CPU("cpu"),
+  /**
+   * wall-clock time of all threads, regardless of their state
+   */
+  WALL("wall"),
+  /**
+   * wall-clock time of threads BLOCKED on a monitor
+   */
+  BLOCKED("blocked"),
+  /**
+   * wall-clock time of WAITING and TIMED_WAITING threads, and of RUNNABLE threads
+   * which wait in an idle frame (socket reads, selectors, ...)
+   */
+  WAITING("waiting");
+
+  private final String name;
+
+  private ProfileMode(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Returns the lowercase name, used on the command line and as sample type of exports.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns true if samples are weighted by CPU time instead of wall-clock time.
+   */
+  public boolean isCpuTime() {
+    return this == CPU;
+  }
+
+  /**
+   * Returns true if a thread in the given state is sampled.
+   *
+   * @param state
+   * @param idle  the thread waits in an idle frame, see IdleFrameClassifier
+   * @return
+   */
+  public boolean isSampled(Thread.State state, boolean idle) {
+    switch (this) {
+      case CPU:
+        return state == Thread.State.RUNNABLE && !idle;
+      case WALL:
+        return state != Thread.State.NEW && state != Thread.State.TERMINATED;
+      case BLOCKED:
+        return state == Thread.State.BLOCKED;
+      case WAITING:
+        return state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING
+            || (state == Thread.State.RUNNABLE && idle);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Parses the name of a mode (case-insensitive).
+   *
+   * @param name
+   * @return
+   * @throws IllegalArgumentException if there is no such mode
+   */
+  public static ProfileMode parse(String name) {
+    for (ProfileMode mode : values()) {
+      if (mode.name.equals(name.toLowerCase(Locale.US))) {
+        return mode;
+      }
+    }
+    throw new IllegalArgumentException("Unknown profile mode " + name
+        + ", expected one of cpu, wall, blocked, waiting");
+  }
+}
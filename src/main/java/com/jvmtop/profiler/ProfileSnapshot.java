@@ -0,0 +1,145 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Consistent, immutable view of the profiling data of a CPUSampler at a given point in time.
+ * Taking a snapshot does not block the sampling for longer than copying the data.
+ */
+public class ProfileSnapshot {
+
+  private final List<MethodStats> topMethods;
+  private final List<CallTree.Entry> callTreeEntries;
+  private final long totalCpuTime;
+  private final long sampleCount;
+  private final long sampledTimeNanos;
+  private final int sampleRoundTrips;
+  private final int stackCount;
+  private final ProfileMode profileMode;
+  private final Map<String, Long> stateTimes;
+  private final long windowNanos;
+  private final double recentTotalTime;
+  private final List<GroupStats> rollupEntries;
+
+  public ProfileSnapshot(List<MethodStats> topMethods, List<CallTree.Entry> callTreeEntries,
+                         long totalCpuTime, long sampleCount, long sampledTimeNanos,
+                         int sampleRoundTrips, int stackCount, ProfileMode profileMode,
+                         Map<String, Long> stateTimes, long windowNanos,
+                         double recentTotalTime, List<GroupStats> rollupEntries) {
+    super();
+    this.topMethods = Collections.unmodifiableList(topMethods);
+    this.callTreeEntries = Collections.unmodifiableList(callTreeEntries);
+    this.totalCpuTime = totalCpuTime;
+    this.sampleCount = sampleCount;
+    this.sampledTimeNanos = sampledTimeNanos;
+    this.sampleRoundTrips = sampleRoundTrips;
+    this.stackCount = stackCount;
+    this.profileMode = profileMode;
+    this.stateTimes = Collections.unmodifiableMap(stateTimes);
+    this.windowNanos = windowNanos;
+    this.recentTotalTime = recentTotalTime;
+    this.rollupEntries = Collections.unmodifiableList(rollupEntries);
+  }
+
+  /**
+   * Returns the methods with the highest sampled time, ordered by their time
+   * (their recent time if a window is used).
+   */
+  public List<MethodStats> getTopMethods() {
+    return topMethods;
+  }
+
+  /**
+   * Returns the hottest paths of the call tree in depth-first order,
+   * empty if the call tree is not enabled.
+   */
+  public List<CallTree.Entry> getCallTreeEntries() {
+    return callTreeEntries;
+  }
+
+  /**
+   * Returns the time (in nanoseconds) of all samples, across all threads.
+   * This is CPU time in ProfileMode.CPU and wall-clock time otherwise.
+   */
+  public long getTotalCpuTime() {
+    return totalCpuTime;
+  }
+
+  public long getSampleCount() {
+    return sampleCount;
+  }
+
+  /**
+   * Returns the measured wall-clock time (in nanoseconds) covered by all samples.
+   */
+  public long getSampledTimeNanos() {
+    return sampledTimeNanos;
+  }
+
+  /**
+   * Returns the number of remote calls the last sample needed.
+   */
+  public int getSampleRoundTrips() {
+    return sampleRoundTrips;
+  }
+
+  /**
+   * Returns the number of distinct stacks sampled so far.
+   */
+  public int getStackCount() {
+    return stackCount;
+  }
+
+  public ProfileMode getProfileMode() {
+    return profileMode;
+  }
+
+  /**
+   * Returns the wall-clock time (in nanoseconds) of all threads, keyed by thread state.
+   * RUNNABLE threads waiting in an idle frame are accounted as "IDLE".
+   */
+  public Map<String, Long> getStateTimes() {
+    return stateTimes;
+  }
+
+  /**
+   * Returns the window of the recent method statistics, 0 if disabled.
+   */
+  public long getWindowNanos() {
+    return windowNanos;
+  }
+
+  /**
+   * Returns the decayed time of all samples, the counterpart of MethodStats.getRecentHits().
+   */
+  public double getRecentTotalTime() {
+    return recentTotalTime;
+  }
+
+  /**
+   * Returns the classes or packages with the highest time, ordered by their time,
+   * empty if no rollup is used.
+   */
+  public List<GroupStats> getRollupEntries() {
+    return rollupEntries;
+  }
+}
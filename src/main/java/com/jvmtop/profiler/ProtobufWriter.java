@@ -0,0 +1,96 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal protocol buffers encoder, supporting the wire types needed by PprofWriter:
+ * varints, length-delimited strings and nested messages.
+ *
+ * Nested messages are encoded into their own ProtobufWriter and then added as bytes.
+ */
+public class ProtobufWriter {
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private static final int WIRETYPE_VARINT = 0;
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+  private void writeVarint(long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private void writeTag(int fieldNumber, int wireType) {
+    writeVarint((fieldNumber << 3) | wireType);
+  }
+
+  /**
+   * Writes an int64 / uint64 field. Zero values are omitted, like proto3 does.
+   */
+  public ProtobufWriter writeInt64(int fieldNumber, long value) {
+    if (value != 0) {
+      writeTag(fieldNumber, WIRETYPE_VARINT);
+      writeVarint(value);
+    }
+    return this;
+  }
+
+  /**
+   * Writes a string field, also used for repeated strings (empty strings are written as well).
+   */
+  public ProtobufWriter writeString(int fieldNumber, String value) {
+    return writeBytes(fieldNumber, value.getBytes(CHARSET));
+  }
+
+  /**
+   * Writes an embedded message field.
+   */
+  public ProtobufWriter writeMessage(int fieldNumber, ProtobufWriter message) {
+    return writeBytes(fieldNumber, message.toByteArray());
+  }
+
+  /**
+   * Writes a packed repeated int64 / uint64 field.
+   */
+  public ProtobufWriter writePackedInt64(int fieldNumber, long[] values, int length) {
+    ProtobufWriter packed = new ProtobufWriter();
+    for (int i = 0; i < length; i++) {
+      packed.writeVarint(values[i]);
+    }
+    return writeBytes(fieldNumber, packed.toByteArray());
+  }
+
+  private ProtobufWriter writeBytes(int fieldNumber, byte[] bytes) {
+    writeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+    writeVarint(bytes.length);
+    out.write(bytes, 0, bytes.length);
+    return this;
+  }
+
+  public byte[] toByteArray() {
+    return out.toByteArray();
+  }
+}
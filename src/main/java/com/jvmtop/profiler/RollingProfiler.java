@@ -0,0 +1,228 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import com.jvmtop.monitor.VMInfo;
+import com.jvmtop.monitor.VMInfoState;
+import com.jvmtop.openjdk.tools.LocalVirtualMachine;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless, continuous profiler of a single jvm.
+ *
+ * At each interval, the profile of the CPUSampler is saved to its own compressed file
+ * (see SavedProfile) and the sampler is reset, so the memory of jvmtop only depends
+ * on the samples of a single interval. The oldest files of the jvm are deleted
+ * when the files exceed the configured size.
+ * A summary of the interval including the overhead of the sampler is logged for each file.
+ */
+public class RollingProfiler {
+
+  public static final long DEFAULT_INTERVAL_MILLIS = 60000;
+
+  public static final long DEFAULT_MAX_DIRECTORY_BYTES = 100L * 1024 * 1024;
+
+  private static final String FILE_SUFFIX = ".profile.gz";
+
+  private final Logger logger = Logger.getLogger("jvmtop");
+  private final int vmid;
+  private final VMInfo vmInfo;
+  private final CPUSampler cpuSampler;
+  private final File directory;
+  private final String filePrefix;
+  private long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+  private long maxDirectoryBytes = DEFAULT_MAX_DIRECTORY_BYTES;
+  private long sampleIntervalMillis = CPUSampler.DEFAULT_INTERVAL_MILLIS;
+  private long sampleJitterMillis = 0;
+  private long intervalStartMillis;
+  private volatile boolean finished = false;
+
+  public RollingProfiler(int vmid, File directory) throws Exception {
+    this(vmid, directory, ProfileBackend.JMX);
+  }
+
+  /**
+   * Creates the profiler, fetching the stacks with the given backend.
+   * The attach backend does not load the JMX management agent into the jvm.
+   */
+  public RollingProfiler(int vmid, File directory, ProfileBackend backend) throws Exception {
+    super();
+    this.vmid = vmid;
+    if (backend == ProfileBackend.ATTACH) {
+      vmInfo = null;
+      cpuSampler = new CPUSampler(new AttachStackSource(vmid));
+    } else {
+      LocalVirtualMachine localVirtualMachine =
+          LocalVirtualMachine.getLocalVirtualMachine(vmid);
+      vmInfo = VMInfo.processNewVM(localVirtualMachine, vmid);
+      cpuSampler = new CPUSampler(vmInfo);
+    }
+    this.directory = directory;
+    filePrefix = "jvmtop-" + vmid + "-";
+  }
+
+  /**
+   * Returns the sampler, to configure what is profiled.
+   */
+  public CPUSampler getCpuSampler() {
+    return cpuSampler;
+  }
+
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  /**
+   * Sets the time covered by each profile file.
+   */
+  public void setIntervalMillis(long intervalMillis) {
+    this.intervalMillis = intervalMillis;
+  }
+
+  public long getMaxDirectoryBytes() {
+    return maxDirectoryBytes;
+  }
+
+  /**
+   * Sets the maximum size of the profile files of the jvm, the oldest files are deleted first.
+   */
+  public void setMaxDirectoryBytes(long maxDirectoryBytes) {
+    this.maxDirectoryBytes = maxDirectoryBytes;
+  }
+
+  public long getSampleIntervalMillis() {
+    return sampleIntervalMillis;
+  }
+
+  public void setSampleIntervalMillis(long sampleIntervalMillis) {
+    this.sampleIntervalMillis = sampleIntervalMillis;
+  }
+
+  public long getSampleJitterMillis() {
+    return sampleJitterMillis;
+  }
+
+  public void setSampleJitterMillis(long sampleJitterMillis) {
+    this.sampleJitterMillis = sampleJitterMillis;
+  }
+
+  /**
+   * Profiles the jvm until it terminates (or jvmtop is stopped), writing a file per interval.
+   * The last, partial interval is written on exit.
+   *
+   * @param maxIntervals stops after this number of intervals, -1 for no limit
+   * @throws Exception
+   */
+  public void run(int maxIntervals) throws Exception {
+    if (vmInfo != null && vmInfo.getState() != VMInfoState.ATTACHED) {
+      throw new IOException("Could not attach to process " + vmid);
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create directory " + directory);
+    }
+    intervalStartMillis = System.currentTimeMillis();
+    cpuSampler.reset();
+    cpuSampler.start(sampleIntervalMillis, sampleJitterMillis);
+    Runtime.getRuntime().addShutdownHook(new Thread("jvmtop-rolling-profiler") {
+      @Override
+      public void run() {
+        try {
+          if (!finished) {
+            writeInterval();
+          }
+        } catch (IOException e) {
+          System.err.println("ERROR: Could not write profile: " + e.getMessage());
+        }
+      }
+    });
+
+    for (int interval = 0; maxIntervals < 0 || interval < maxIntervals; interval++) {
+      Thread.sleep(Math.max(0, intervalStartMillis + intervalMillis - System.currentTimeMillis()));
+      writeInterval();
+    }
+    cpuSampler.stop();
+    finished = true;
+  }
+
+  /**
+   * Writes the profile of the current interval to a new file and starts the next interval.
+   *
+   * @throws IOException
+   */
+  private synchronized void writeInterval() throws IOException {
+    long now = System.currentTimeMillis();
+    long intervalNanos = (now - intervalStartMillis) * 1000000L;
+    SavedProfile savedProfile = cpuSampler.rollover();
+    File file = new File(directory, filePrefix
+        + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(intervalStartMillis))
+        + FILE_SUFFIX);
+    intervalStartMillis = now;
+    savedProfile.save(file);
+    long directoryBytes = rotate();
+
+    long samples = savedProfile.getSampleCount();
+    logger.log(Level.INFO, String.format(
+        "%s: %d samples, %d remote calls, %d stacks, sampler CPU %.2fs (%.2f%% of the interval),"
+            + " %.1fms per sample, %.1fKB written, %.1fKB in total",
+        file.getName(), samples, savedProfile.getRemoteCalls(), savedProfile.getStacks().size(),
+        savedProfile.getSamplerCpuNanos() / 1e9,
+        intervalNanos > 0 ? (double) savedProfile.getSamplerCpuNanos() / intervalNanos * 100 : 0,
+        samples > 0 ? savedProfile.getSamplerWallNanos() / 1e6 / samples : 0,
+        file.length() / 1024d, directoryBytes / 1024d));
+  }
+
+  /**
+   * Deletes the oldest files of the jvm while they exceed the maximum size,
+   * the newest file is always kept.
+   *
+   * @return the size of the remaining files
+   */
+  private long rotate() {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(filePrefix) && name.endsWith(FILE_SUFFIX);
+      }
+    });
+    if (files == null) {
+      return 0;
+    }
+    // the timestamp in the name orders them chronologically
+    Arrays.sort(files);
+    long totalBytes = 0;
+    for (File file : files) {
+      totalBytes += file.length();
+    }
+    for (int i = 0; i < files.length - 1 && totalBytes > maxDirectoryBytes; i++) {
+      long length = files[i].length();
+      if (files[i].delete()) {
+        totalBytes -= length;
+        logger.fine("deleted profile " + files[i]);
+      }
+    }
+    return totalBytes;
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Sums up the time of the hot frames per class or per package prefix, incrementally as samples arrive.
+ *
+ * Each method id is mapped to its group once, so adding a sample is an array lookup and an addition.
+ * The top groups are selected with a bounded heap instead of sorting all groups.
+ *
+ * Not thread-safe, CPUSampler guards it with its lock.
+ */
+public class Rollup {
+
+  /**
+   * Orders groups by their hits, ascending (the head of the heap is the smallest of the top groups)
+   */
+  private static final Comparator<GroupStats> HITS_ASCENDING = new Comparator<GroupStats>() {
+    @Override
+    public int compare(GroupStats o1, GroupStats o2) {
+      return Long.compare(o1.getHits(), o2.getHits());
+    }
+  };
+
+  /**
+   * The granularity of a rollup
+   */
+  public enum Level {
+    CLASS, PACKAGE;
+
+    /**
+     * Parses the name of a level (case-insensitive).
+     *
+     * @throws IllegalArgumentException if there is no such level
+     */
+    public static Level parse(String name) {
+      for (Level level : values()) {
+        if (level.name().equals(name.toUpperCase(Locale.US))) {
+          return level;
+        }
+      }
+      throw new IllegalArgumentException("Unknown rollup " + name + ", expected class or package");
+    }
+  }
+
+  private final Level level;
+  private final int packageDepth;
+  private final List<String> groupNames = new ArrayList<>();
+  private final Map<String, Integer> groupIds = new HashMap<>();
+  private long[] groupHits = new long[64];
+  /**
+   * group id + 1 by method id, 0 if the method has not been mapped yet
+   */
+  private int[] methodGroups = new int[256];
+
+  /**
+   * @param level
+   * @param packageDepth the number of package name components of a package group, e.g. 2 for "com.acme"
+   */
+  public Rollup(Level level, int packageDepth) {
+    super();
+    if (packageDepth < 1) {
+      throw new IllegalArgumentException("Package depth must be at least 1");
+    }
+    this.level = level;
+    this.packageDepth = packageDepth;
+  }
+
+  /**
+   * Creates a copy of the group totals of the given rollup, see copyGroups().
+   */
+  private Rollup(Rollup source) {
+    this(source.level, source.packageDepth);
+    groupNames.addAll(source.groupNames);
+    groupHits = Arrays.copyOf(source.groupHits, source.groupHits.length);
+  }
+
+  public Level getLevel() {
+    return level;
+  }
+
+  public int getPackageDepth() {
+    return packageDepth;
+  }
+
+  /**
+   * Adds the time of a hot frame.
+   *
+   * @param methodId
+   * @param dictionary the dictionary of the method id
+   * @param time
+   */
+  public void add(int methodId, FrameDictionary dictionary, long time) {
+    if (methodId >= methodGroups.length) {
+      methodGroups = Arrays.copyOf(methodGroups, Math.max(methodGroups.length * 2, methodId + 1));
+    }
+    int groupId = methodGroups[methodId] - 1;
+    if (groupId < 0) {
+      groupId = getGroupId(getGroupName(dictionary.getClassName(methodId)));
+      methodGroups[methodId] = groupId + 1;
+    }
+    groupHits[groupId] += time;
+  }
+
+  /**
+   * Returns the groups with the highest time, ordered by their time.
+   *
+   * @param limit
+   * @param prefix only groups starting with this prefix (drill-down), null for all groups
+   * @return
+   */
+  public List<GroupStats> getTop(int limit, String prefix) {
+    if (limit <= 0) {
+      return Collections.emptyList();
+    }
+    PriorityQueue<GroupStats> top = new PriorityQueue<>(limit, HITS_ASCENDING);
+    for (int groupId = 0; groupId < groupNames.size(); groupId++) {
+      long hits = groupHits[groupId];
+      if (hits == 0 || (top.size() == limit && hits <= top.peek().getHits())) {
+        continue;
+      }
+      String name = groupNames.get(groupId);
+      if (prefix != null && !name.startsWith(prefix)) {
+        continue;
+      }
+      if (top.size() == limit) {
+        top.poll();
+      }
+      top.add(new GroupStats(name, hits));
+    }
+    List<GroupStats> result = new ArrayList<>(top);
+    Collections.sort(result, Collections.reverseOrder(HITS_ASCENDING));
+    return result;
+  }
+
+  /**
+   * Returns a copy of the current group totals, which is not affected by further samples.
+   * Only getTop() is supported on the copy.
+   */
+  public Rollup copyGroups() {
+    return new Rollup(this);
+  }
+
+  private int getGroupId(String groupName) {
+    Integer groupId = groupIds.get(groupName);
+    if (groupId == null) {
+      groupId = groupNames.size();
+      groupNames.add(groupName);
+      groupIds.put(groupName, groupId);
+      if (groupId >= groupHits.length) {
+        groupHits = Arrays.copyOf(groupHits, groupHits.length * 2);
+      }
+    }
+    return groupId;
+  }
+
+  /**
+   * Returns the class name or its package truncated to the package depth.
+   */
+  private String getGroupName(String className) {
+    if (level == Level.CLASS) {
+      return className;
+    }
+    int end = className.lastIndexOf('.');
+    if (end < 0) {
+      return "";
+    }
+    int components = 1;
+    for (int i = className.indexOf('.'); i >= 0 && i < end; i = className.indexOf('.', i + 1)) {
+      if (components++ == packageDepth) {
+        return className.substring(0, i);
+      }
+    }
+    return className.substring(0, end);
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A profile saved to a file, to be compared with another one later (see ProfileDiff).
+ *
+ * The file is a gzip compressed text file:
+ * <pre>
+ * # jvmtop profile 1
+ * mode cpu
+ * sampled &lt;sampled wall-clock nanoseconds&gt;
+ * total &lt;sampled nanoseconds of all threads&gt;
+ * samples &lt;number of samples&gt;
+ * remote-calls &lt;number of remote calls of all samples&gt;
+ * sampler-cpu &lt;CPU nanoseconds used by jvmtop's sampling thread&gt;
+ * sampler-wall &lt;wall-clock nanoseconds spent taking the samples&gt;
+ * method &lt;nanoseconds&gt; &lt;class.method&gt;
+ * stack &lt;nanoseconds&gt; &lt;folded stack&gt;
+ * </pre>
+ * Method times are the times of the hot frames (i.e. after filtering),
+ * stacks are complete and in the format of FoldedStacks.
+ */
+public class SavedProfile {
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final String HEADER = "# jvmtop profile 1";
+
+  private final ProfileMode profileMode;
+  private final long sampledTimeNanos;
+  private final long totalTime;
+  private final Map<String, Long> methods;
+  private final Map<String, Long> stacks;
+  private final long sampleCount;
+  private final long remoteCalls;
+  private final long samplerCpuNanos;
+  private final long samplerWallNanos;
+
+  public SavedProfile(ProfileMode profileMode, long sampledTimeNanos, long totalTime,
+                      Map<String, Long> methods, Map<String, Long> stacks, long sampleCount,
+                      long remoteCalls, long samplerCpuNanos, long samplerWallNanos) {
+    super();
+    this.profileMode = profileMode;
+    this.sampledTimeNanos = sampledTimeNanos;
+    this.totalTime = totalTime;
+    this.methods = Collections.unmodifiableMap(methods);
+    this.stacks = Collections.unmodifiableMap(stacks);
+    this.sampleCount = sampleCount;
+    this.remoteCalls = remoteCalls;
+    this.samplerCpuNanos = samplerCpuNanos;
+    this.samplerWallNanos = samplerWallNanos;
+  }
+
+  public ProfileMode getProfileMode() {
+    return profileMode;
+  }
+
+  /**
+   * Returns the measured wall-clock time (in nanoseconds) covered by all samples.
+   */
+  public long getSampledTimeNanos() {
+    return sampledTimeNanos;
+  }
+
+  /**
+   * Returns the time (in nanoseconds) of all samples, across all threads.
+   */
+  public long getTotalTime() {
+    return totalTime;
+  }
+
+  /**
+   * Returns the time of the hot frames, keyed by "class.method".
+   */
+  public Map<String, Long> getMethods() {
+    return methods;
+  }
+
+  /**
+   * Returns the time of the stacks, keyed by folded stack.
+   */
+  public Map<String, Long> getStacks() {
+    return stacks;
+  }
+
+  public long getSampleCount() {
+    return sampleCount;
+  }
+
+  /**
+   * Returns the number of remote calls needed by all samples.
+   */
+  public long getRemoteCalls() {
+    return remoteCalls;
+  }
+
+  /**
+   * Returns the CPU time (in nanoseconds) jvmtop's sampling thread used to take the samples.
+   */
+  public long getSamplerCpuNanos() {
+    return samplerCpuNanos;
+  }
+
+  /**
+   * Returns the wall-clock time (in nanoseconds) spent taking the samples.
+   */
+  public long getSamplerWallNanos() {
+    return samplerWallNanos;
+  }
+
+  /**
+   * Writes the profile to the given file.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public void save(File file) throws IOException {
+    try (Writer out = new BufferedWriter(new OutputStreamWriter(
+        new GZIPOutputStream(new FileOutputStream(file)), CHARSET))) {
+      out.write(HEADER + "\n");
+      out.write("mode " + profileMode.getName() + "\n");
+      out.write("sampled " + sampledTimeNanos + "\n");
+      out.write("total " + totalTime + "\n");
+      out.write("samples " + sampleCount + "\n");
+      out.write("remote-calls " + remoteCalls + "\n");
+      out.write("sampler-cpu " + samplerCpuNanos + "\n");
+      out.write("sampler-wall " + samplerWallNanos + "\n");
+      for (Map.Entry<String, Long> method : methods.entrySet()) {
+        out.write("method " + method.getValue() + " " + method.getKey() + "\n");
+      }
+      for (Map.Entry<String, Long> stack : stacks.entrySet()) {
+        out.write("stack " + stack.getValue() + " " + stack.getKey() + "\n");
+      }
+    }
+  }
+
+  /**
+   * Reads a profile written by save().
+   *
+   * @param file
+   * @return
+   * @throws IOException if the file cannot be read or is not a saved profile
+   */
+  public static SavedProfile load(File file) throws IOException {
+    ProfileMode profileMode = ProfileMode.CPU;
+    long sampledTimeNanos = 0;
+    long totalTime = 0;
+    long sampleCount = 0;
+    long remoteCalls = 0;
+    long samplerCpuNanos = 0;
+    long samplerWallNanos = 0;
+    Map<String, Long> methods = new LinkedHashMap<>();
+    Map<String, Long> stacks = new LinkedHashMap<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new GZIPInputStream(new FileInputStream(file)), CHARSET))) {
+      if (!HEADER.equals(reader.readLine())) {
+        throw new IOException(file + " is not a saved jvmtop profile");
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split(" ", 3);
+        try {
+          if (fields[0].equals("mode")) {
+            profileMode = ProfileMode.parse(fields[1]);
+          } else if (fields[0].equals("sampled")) {
+            sampledTimeNanos = Long.parseLong(fields[1]);
+          } else if (fields[0].equals("total")) {
+            totalTime = Long.parseLong(fields[1]);
+          } else if (fields[0].equals("samples")) {
+            sampleCount = Long.parseLong(fields[1]);
+          } else if (fields[0].equals("remote-calls")) {
+            remoteCalls = Long.parseLong(fields[1]);
+          } else if (fields[0].equals("sampler-cpu")) {
+            samplerCpuNanos = Long.parseLong(fields[1]);
+          } else if (fields[0].equals("sampler-wall")) {
+            samplerWallNanos = Long.parseLong(fields[1]);
+          } else if (fields[0].equals("method")) {
+            methods.put(fields[2], Long.parseLong(fields[1]));
+          } else if (fields[0].equals("stack")) {
+            stacks.put(fields[2], Long.parseLong(fields[1]));
+          }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+          throw new IOException("Invalid line in " + file + ": " + line, e);
+        }
+      }
+    }
+    return new SavedProfile(profileMode, sampledTimeNanos, totalTime, methods, stacks,
+        sampleCount, remoteCalls, samplerCpuNanos, samplerWallNanos);
+  }
+}
@@ -0,0 +1,305 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Weighted Space-Saving sketch (Metwally et al.), tracking the heaviest of an unbounded number
+ * of methods in a fixed number of counters.
+ *
+ * When a new method arrives and all counters are in use, the method with the smallest count is replaced
+ * and the new method inherits its count as error. The counts are therefore upper bounds,
+ * overestimating by at most the recorded error, and every method with a true weight above
+ * total / capacity is guaranteed to be tracked.
+ *
+ * The counters are kept in a min-heap. The tracked methods are found via an open-addressing
+ * hash table of twice the capacity, keyed by class and method name, so neither the names
+ * are concatenated nor untracked methods remembered: the memory only depends on the capacity,
+ * and an update costs O(log capacity) without allocating.
+ * Not thread-safe, CPUSampler guards it with its lock.
+ */
+public class SpaceSaving {
+
+  private static final int UNTRACKED = -1;
+
+  /**
+   * Immutable estimate of a tracked method
+   */
+  public static final class Entry {
+    private final String className;
+    private final String methodName;
+    private final long count;
+    private final long error;
+
+    private Entry(String className, String methodName, long count, long error) {
+      this.className = className;
+      this.methodName = methodName;
+      this.count = count;
+      this.error = error;
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    public String getMethodName() {
+      return methodName;
+    }
+
+    /**
+     * Returns the estimated weight, an upper bound of the true weight.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Returns the maximum overestimation, count - error is a lower bound of the true weight.
+     */
+    public long getError() {
+      return error;
+    }
+  }
+
+  /**
+   * Orders entries by their count, descending
+   */
+  private static final Comparator<Entry> COUNT_COMPARATOR = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry o1, Entry o2) {
+      return Long.compare(o2.count, o1.count);
+    }
+  };
+
+  private final int capacity;
+  // the heap, by position
+  private final String[] classNames;
+  private final String[] methodNames;
+  private final int[] hashes;
+  private final long[] counts;
+  private final long[] errors;
+  private final int[] slotIndexes;
+  // the hash table: heap position + 1 by slot, 0 marks an empty slot
+  private final int[] slots;
+  private final int mask;
+  private int size = 0;
+  private long total = 0;
+
+  public SpaceSaving(int capacity) {
+    super();
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1");
+    }
+    this.capacity = capacity;
+    classNames = new String[capacity];
+    methodNames = new String[capacity];
+    hashes = new int[capacity];
+    counts = new long[capacity];
+    errors = new long[capacity];
+    slotIndexes = new int[capacity];
+    // a load factor of at most 0.5 keeps the probe sequences short
+    int tableSize = Integer.highestOneBit(capacity) * 4;
+    slots = new int[tableSize];
+    mask = tableSize - 1;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the sum of all added weights.
+   */
+  public long getTotal() {
+    return total;
+  }
+
+  /**
+   * Returns the upper bound of the weight of any method which is not tracked.
+   */
+  public long getMaxUntrackedCount() {
+    return size < capacity ? 0 : counts[0];
+  }
+
+  /**
+   * Adds a weight to the given method.
+   *
+   * @param className
+   * @param methodName
+   * @param weight     must not be negative
+   */
+  public void add(String className, String methodName, long weight) {
+    total += weight;
+    int hash = hash(className, methodName);
+    int position = find(className, methodName, hash);
+    if (position != UNTRACKED) {
+      counts[position] += weight;
+      siftDown(position);
+    } else if (size < capacity) {
+      set(size, className, methodName, hash, weight, 0);
+      siftUp(size++);
+    } else {
+      // replace the method with the smallest count
+      long min = counts[0];
+      removeSlot(0);
+      set(0, className, methodName, hash, min + weight, min);
+      siftDown(0);
+    }
+  }
+
+  /**
+   * Returns the tracked methods with the highest counts, ordered by count.
+   *
+   * @param limit
+   * @return
+   */
+  public List<Entry> getTop(int limit) {
+    List<Entry> entries = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      entries.add(new Entry(classNames[i], methodNames[i], counts[i], errors[i]));
+    }
+    Collections.sort(entries, COUNT_COMPARATOR);
+    return entries.subList(0, Math.min(limit, entries.size()));
+  }
+
+  /**
+   * Removes all methods.
+   */
+  public void clear() {
+    Arrays.fill(slots, 0);
+    Arrays.fill(classNames, null);
+    Arrays.fill(methodNames, null);
+    size = 0;
+    total = 0;
+  }
+
+  private static int hash(String className, String methodName) {
+    int hash = className.hashCode() * 31 + methodName.hashCode();
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Returns the heap position of the given method, or UNTRACKED.
+   */
+  private int find(String className, String methodName, int hash) {
+    for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+      int position = slots[slot] - 1;
+      if (hashes[position] == hash && methodNames[position].equals(methodName)
+          && classNames[position].equals(className)) {
+        return position;
+      }
+    }
+    return UNTRACKED;
+  }
+
+  /**
+   * Stores a method at the given heap position and adds it to the hash table.
+   */
+  private void set(int position, String className, String methodName, int hash,
+                   long count, long error) {
+    classNames[position] = className;
+    methodNames[position] = methodName;
+    hashes[position] = hash;
+    counts[position] = count;
+    errors[position] = error;
+    int slot = hash & mask;
+    while (slots[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    slots[slot] = position + 1;
+    slotIndexes[position] = slot;
+  }
+
+  /**
+   * Removes the method at the given heap position from the hash table.
+   * Following entries of the probe sequence are shifted back, so no tombstones are needed.
+   */
+  private void removeSlot(int position) {
+    int hole = slotIndexes[position];
+    slots[hole] = 0;
+    for (int slot = (hole + 1) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+      int moved = slots[slot] - 1;
+      int home = hashes[moved] & mask;
+      // the entry may only move back if the hole is on its probe sequence
+      if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+        slots[hole] = slots[slot];
+        slotIndexes[moved] = hole;
+        slots[slot] = 0;
+        hole = slot;
+      }
+    }
+  }
+
+  private void siftUp(int position) {
+    while (position > 0) {
+      int parent = (position - 1) / 2;
+      if (counts[parent] <= counts[position]) {
+        break;
+      }
+      swap(position, parent);
+      position = parent;
+    }
+  }
+
+  private void siftDown(int position) {
+    while (true) {
+      int smallest = position;
+      int left = position * 2 + 1;
+      int right = left + 1;
+      if (left < size && counts[left] < counts[smallest]) {
+        smallest = left;
+      }
+      if (right < size && counts[right] < counts[smallest]) {
+        smallest = right;
+      }
+      if (smallest == position) {
+        break;
+      }
+      swap(position, smallest);
+      position = smallest;
+    }
+  }
+
+  private void swap(int i, int j) {
+    String className = classNames[i];
+    String methodName = methodNames[i];
+    int hash = hashes[i];
+    long count = counts[i];
+    long error = errors[i];
+    int slotIndex = slotIndexes[i];
+    classNames[i] = classNames[j];
+    methodNames[i] = methodNames[j];
+    hashes[i] = hashes[j];
+    counts[i] = counts[j];
+    errors[i] = errors[j];
+    slotIndexes[i] = slotIndexes[j];
+    classNames[j] = className;
+    methodNames[j] = methodName;
+    hashes[j] = hash;
+    counts[j] = count;
+    errors[j] = error;
+    slotIndexes[j] = slotIndex;
+    slots[slotIndexes[i]] = i + 1;
+    slots[slotIndexes[j]] = j + 1;
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.util.List;
+
+/**
+ * Fetches the stacks of the threads of the profiled jvm for the CPUSampler.
+ *
+ * @see JmxStackSource
+ * @see AttachStackSource
+ */
+public interface StackSource {
+
+  /**
+   * Fetches the stacks of all or the selected threads.
+   *
+   * @param selector selects the threads by name, null for all threads
+   * @param maxDepth maximum number of frames per stack (the innermost ones), 0 for all frames
+   * @param cpuTimes fetches the CPU time of each thread as well, if supported by the source
+   * @return the samples of the threads which are alive
+   * @throws Exception
+   */
+  List<ThreadSample> fetch(ThreadSelector selector, int maxDepth, boolean cpuTimes)
+      throws Exception;
+
+  /**
+   * Returns the number of remote calls done by the last fetch().
+   */
+  int getRoundTrips();
+}
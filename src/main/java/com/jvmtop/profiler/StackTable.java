@@ -0,0 +1,147 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Arrays;
+
+/**
+ * Deduplicating store of sampled stacks.
+ *
+ * A stack is an array of frame ids (see FrameDictionary), ordered from the outermost caller
+ * to the innermost frame. Each distinct stack is stored once and gets a dense stack id,
+ * with a primitive weight (e.g. CPU nanoseconds) and sample count.
+ * Memory grows with the number of distinct stacks, not with the number of samples.
+ *
+ * Implemented as an open-addressing hash table (linear probing) over the stack ids.
+ *
+ * Not thread-safe.
+ */
+public class StackTable {
+
+  private static final int EMPTY = -1;
+
+  private int[] slots = newSlots(1024);
+  private int[][] stacks = new int[512][];
+  private int[] hashes = new int[512];
+  private long[] weights = new long[512];
+  private long[] counts = new long[512];
+  private int size = 0;
+
+  private static int[] newSlots(int capacity) {
+    int[] slots = new int[capacity];
+    Arrays.fill(slots, EMPTY);
+    return slots;
+  }
+
+  /**
+   * Adds a sample of the given stack.
+   *
+   * @param frameIds the frame ids, outermost caller first
+   * @param length   the number of valid entries in frameIds
+   * @param weight
+   * @return the id of the stack
+   */
+  public int add(int[] frameIds, int length, long weight) {
+    int hash = hash(frameIds, length);
+    int mask = slots.length - 1;
+    int slot = hash & mask;
+    while (slots[slot] != EMPTY) {
+      int stackId = slots[slot];
+      if (hashes[stackId] == hash && equals(stacks[stackId], frameIds, length)) {
+        weights[stackId] += weight;
+        counts[stackId]++;
+        return stackId;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    if (size == stacks.length) {
+      int capacity = size * 2;
+      stacks = Arrays.copyOf(stacks, capacity);
+      hashes = Arrays.copyOf(hashes, capacity);
+      weights = Arrays.copyOf(weights, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+    }
+    int stackId = size++;
+    stacks[stackId] = Arrays.copyOf(frameIds, length);
+    hashes[stackId] = hash;
+    weights[stackId] = weight;
+    counts[stackId] = 1;
+    slots[slot] = stackId;
+    if (size * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+    return stackId;
+  }
+
+  private void rehash(int capacity) {
+    slots = newSlots(capacity);
+    int mask = capacity - 1;
+    for (int stackId = 0; stackId < size; stackId++) {
+      int slot = hashes[stackId] & mask;
+      while (slots[slot] != EMPTY) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = stackId;
+    }
+  }
+
+  private static int hash(int[] frameIds, int length) {
+    int hash = 1;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + frameIds[i];
+    }
+    // spread the bits, the table index uses the low bits only
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean equals(int[] stack, int[] frameIds, int length) {
+    if (stack.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (stack[i] != frameIds[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of distinct stacks.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the frame ids of the given stack, outermost caller first.
+   * The returned array must not be modified.
+   */
+  public int[] getStack(int stackId) {
+    return stacks[stackId];
+  }
+
+  public long getWeight(int stackId) {
+    return weights[stackId];
+  }
+
+  public long getCount(int stackId) {
+    return counts[stackId];
+  }
+}
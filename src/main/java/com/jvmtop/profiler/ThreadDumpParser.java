@@ -0,0 +1,248 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming parser of the thread dumps written by HotSpot (the output of jstack), e.g.:
+ * <pre>
+ * "main" #1 prio=5 os_prio=0 cpu=1234.56ms elapsed=10.20s tid=0x00007f... nid=0x1a runnable
+ *    java.lang.Thread.State: RUNNABLE
+ * 	at java.io.FileInputStream.readBytes(java.base@11.0.2/Native Method)
+ * 	at com.example.Main.main(Main.java:12)
+ * 	- locked &lt;0x000000071a0b4c20&gt; (a java.lang.Object)
+ * </pre>
+ *
+ * The dump is read line by line, only the samples of the selected threads are kept.
+ * Threads without a java.lang.Thread.State line (internal VM and GC threads) are skipped.
+ * The CPU time of a thread is only known if the jvm writes it (Java 11 and later).
+ *
+ * Parsed frames are cached by their text, so the frames of unchanged stacks are not
+ * parsed (and allocated) again on each sample.
+ * Not thread-safe.
+ */
+public class ThreadDumpParser {
+
+  /**
+   * The frame cache is dropped when it exceeds this size (e.g. because of generated classes)
+   */
+  private static final int MAX_CACHED_FRAMES = 65536;
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private static final String STATE_PREFIX = "java.lang.Thread.State: ";
+  private static final String FRAME_PREFIX = "at ";
+
+  private final Map<String, StackTraceElement> frameCache = new HashMap<>();
+
+  /**
+   * Parses the thread dump of the given stream, the stream is not closed.
+   *
+   * @param in
+   * @param selector selects the threads by name, null for all threads
+   * @param maxDepth maximum number of frames per stack (the innermost ones), 0 for all frames
+   * @return
+   * @throws IOException
+   */
+  public List<ThreadSample> parse(InputStream in, ThreadSelector selector, int maxDepth)
+      throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, CHARSET));
+    List<ThreadSample> samples = new ArrayList<>();
+    List<StackTraceElement> frames = new ArrayList<>();
+    String threadName = null;
+    long threadId = 0;
+    long cpuTime = ThreadSample.UNKNOWN_CPU_TIME;
+    Thread.State state = null;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.startsWith("\"")) {
+        addSample(samples, threadId, threadName, state, frames, cpuTime);
+        frames.clear();
+        state = null;
+        threadName = parseThreadName(line);
+        if (threadName != null && selector != null && !selector.isSelected(threadName)) {
+          threadName = null;
+        }
+        if (threadName != null) {
+          threadId = parseThreadId(line);
+          cpuTime = parseCpuTime(line);
+        }
+        continue;
+      }
+      if (threadName == null) {
+        continue;
+      }
+      String content = line.trim();
+      if (content.isEmpty()) {
+        // end of the thread
+        addSample(samples, threadId, threadName, state, frames, cpuTime);
+        frames.clear();
+        threadName = null;
+      } else if (content.startsWith(FRAME_PREFIX)) {
+        if (maxDepth <= 0 || frames.size() < maxDepth) {
+          StackTraceElement frame = parseFrame(content.substring(FRAME_PREFIX.length()));
+          if (frame != null) {
+            frames.add(frame);
+          }
+        }
+      } else if (content.startsWith(STATE_PREFIX)) {
+        state = parseState(content.substring(STATE_PREFIX.length()));
+      }
+    }
+    addSample(samples, threadId, threadName, state, frames, cpuTime);
+    return samples;
+  }
+
+  private static void addSample(List<ThreadSample> samples, long threadId, String threadName,
+                                Thread.State state, List<StackTraceElement> frames, long cpuTime) {
+    if (threadName != null && state != null && threadId >= 0) {
+      samples.add(new ThreadSample(threadId, threadName, state,
+          frames.toArray(new StackTraceElement[frames.size()]), cpuTime));
+    }
+  }
+
+  /**
+   * Returns the name of a thread header, i.e. the text between the first and last quote.
+   */
+  private static String parseThreadName(String header) {
+    int end = header.lastIndexOf('"');
+    return end > 0 ? header.substring(1, end) : null;
+  }
+
+  /**
+   * Returns the java thread id (#n) of a thread header, or the native thread pointer (tid=0x...)
+   * for dumps without java thread ids. Returns -1 if there is neither.
+   */
+  private static long parseThreadId(String header) {
+    int nameEnd = header.lastIndexOf('"');
+    int index = header.indexOf(" #", nameEnd);
+    if (index >= 0) {
+      return parseNumber(header, index + 2, 10);
+    }
+    index = header.indexOf(" tid=0x", nameEnd);
+    if (index >= 0) {
+      return parseNumber(header, index + 7, 16);
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the CPU time (cpu=1234.56ms) of a thread header in nanoseconds, or UNKNOWN_CPU_TIME.
+   */
+  private static long parseCpuTime(String header) {
+    int index = header.indexOf(" cpu=", header.lastIndexOf('"'));
+    if (index < 0) {
+      return ThreadSample.UNKNOWN_CPU_TIME;
+    }
+    int start = index + 5;
+    int end = header.indexOf("ms", start);
+    if (end < 0) {
+      return ThreadSample.UNKNOWN_CPU_TIME;
+    }
+    try {
+      return (long) (Double.parseDouble(header.substring(start, end)) * 1000000);
+    } catch (NumberFormatException e) {
+      return ThreadSample.UNKNOWN_CPU_TIME;
+    }
+  }
+
+  /**
+   * Parses the digits starting at the given index, returns -1 if there are none.
+   */
+  private static long parseNumber(String str, int start, int radix) {
+    int end = start;
+    while (end < str.length() && Character.digit(str.charAt(end), radix) >= 0) {
+      end++;
+    }
+    if (end == start) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(str.substring(start, end), radix);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Parses a state like "TIMED_WAITING (sleeping)", returns null if unknown.
+   */
+  private static Thread.State parseState(String state) {
+    int end = state.indexOf(' ');
+    try {
+      return Thread.State.valueOf(end < 0 ? state : state.substring(0, end));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Parses a frame like "java.lang.Thread.sleep(java.base@11.0.2/Native Method)"
+   * or "com.example.Main.main(Main.java:12)", returns null if it is malformed.
+   */
+  private StackTraceElement parseFrame(String text) {
+    StackTraceElement frame = frameCache.get(text);
+    if (frame != null) {
+      return frame;
+    }
+    int open = text.indexOf('(');
+    if (open < 0 || !text.endsWith(")")) {
+      return null;
+    }
+    String name = text.substring(0, open);
+    int dot = name.lastIndexOf('.');
+    if (dot <= 0) {
+      return null;
+    }
+    String source = text.substring(open + 1, text.length() - 1);
+    // strips the module (and class loader) of the source, e.g. "java.base@11.0.2/"
+    source = source.substring(source.lastIndexOf('/') + 1);
+    String fileName = null;
+    int lineNumber = -1;
+    if (source.equals("Native Method")) {
+      lineNumber = -2;
+    } else if (!source.equals("Unknown Source")) {
+      fileName = source;
+      int colon = source.lastIndexOf(':');
+      if (colon >= 0) {
+        try {
+          lineNumber = Integer.parseInt(source.substring(colon + 1));
+          fileName = source.substring(0, colon);
+        } catch (NumberFormatException e) {
+          // not a line number, keep the whole source
+        }
+      }
+    }
+    frame = new StackTraceElement(name.substring(0, dot), name.substring(dot + 1),
+        fileName, lineNumber);
+    if (frameCache.size() >= MAX_CACHED_FRAMES) {
+      frameCache.clear();
+    }
+    frameCache.put(text, frame);
+    return frame;
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+/**
+ * The state and stack of a single thread at the time of a sample, as fetched by a StackSource.
+ */
+public class ThreadSample {
+
+  /**
+   * CPU time of threads whose CPU time has not been fetched or is not provided by the source
+   */
+  public static final long UNKNOWN_CPU_TIME = -1;
+
+  private final long threadId;
+  private final String threadName;
+  private final Thread.State state;
+  private final StackTraceElement[] stackTrace;
+  private final long cpuTime;
+
+  public ThreadSample(long threadId, String threadName, Thread.State state,
+                      StackTraceElement[] stackTrace, long cpuTime) {
+    super();
+    this.threadId = threadId;
+    this.threadName = threadName;
+    this.state = state;
+    this.stackTrace = stackTrace;
+    this.cpuTime = cpuTime;
+  }
+
+  public long getThreadId() {
+    return threadId;
+  }
+
+  public String getThreadName() {
+    return threadName;
+  }
+
+  public Thread.State getState() {
+    return state;
+  }
+
+  /**
+   * Returns the stack, innermost frame first (like Thread.getStackTrace()).
+   */
+  public StackTraceElement[] getStackTrace() {
+    return stackTrace;
+  }
+
+  /**
+   * Returns the CPU time consumed by the thread so far in nanoseconds, or UNKNOWN_CPU_TIME.
+   */
+  public long getCpuTime() {
+    return cpuTime;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.profiler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the threads which are sampled by their names, using include and exclude regular expressions.
+ * A pattern matches if it is found anywhere in the thread name (use ^ and $ to anchor it).
+ *
+ * A thread is selected if it matches any include pattern (or there is none)
+ * and does not match any exclude pattern.
+ */
+public class ThreadSelector {
+
+  private final List<Pattern> includes = new ArrayList<>();
+  private final List<Pattern> excludes = new ArrayList<>();
+
+  public void addInclude(String regex) {
+    includes.add(Pattern.compile(regex));
+  }
+
+  public void addExclude(String regex) {
+    excludes.add(Pattern.compile(regex));
+  }
+
+  /**
+   * Returns true if the given thread is sampled.
+   *
+   * @param threadName
+   * @return
+   */
+  public boolean isSelected(String threadName) {
+    boolean included = includes.isEmpty();
+    for (Pattern include : includes) {
+      if (include.matcher(threadName).find()) {
+        included = true;
+        break;
+      }
+    }
+    if (!included) {
+      return false;
+    }
+    for (Pattern exclude : excludes) {
+      if (exclude.matcher(threadName).find()) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * jvmtop - java monitoring for the command-line
+ * Copyright © 2013 Patric Rufflar
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jvmtop.view;
+
+import com.jvmtop.profiler.ProfileDiff;
+import com.jvmtop.profiler.SavedProfile;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Compares two saved profiles, showing the methods and stacks with the biggest regressions.
+ * Needs no jvm, the view exits after printing the comparison once.
+ */
+public class ProfileDiffView extends AbstractConsoleView {
+
+  private static final int DISPLAYED_ENTRIES = 15;
+
+  private final File beforeFile;
+  private final File afterFile;
+  private final ProfileDiff profileDiff;
+
+  public ProfileDiffView(File beforeFile, File afterFile, Integer width) throws Exception {
+    super(width);
+    this.beforeFile = beforeFile;
+    this.afterFile = afterFile;
+    profileDiff = new ProfileDiff(SavedProfile.load(beforeFile), SavedProfile.load(afterFile));
+  }
+
+  @Override
+  public void printView() throws Exception {
+    SavedProfile before = profileDiff.getBefore();
+    SavedProfile after = profileDiff.getAfter();
+    System.out.printf(" Before: %s (%s, %.1fs sampled)%n", beforeFile,
+        before.getProfileMode().getName(), before.getSampledTimeNanos() / 1e9);
+    System.out.printf(" After:  %s (%s, %.1fs sampled)%n", afterFile,
+        after.getProfileMode().getName(), after.getSampledTimeNanos() / 1e9);
+    if (before.getProfileMode() != after.getProfileMode()) {
+      System.out.println(" WARNING: the profiles have different modes");
+    }
+    System.out.println(" Times are milliseconds per sampled second, shares are of the total time.");
+    System.out.println();
+
+    System.out.printf(" %8s %8s %8s %8s  %s%n", "DELTA", "AFTER", "BEFORE", "SHARE", "METHOD");
+    printEntries(profileDiff.getMethodDeltas(), false);
+    System.out.println();
+    System.out.printf(" %8s %8s %8s %8s  %s%n", "DELTA", "AFTER", "BEFORE", "SHARE", "STACK");
+    printEntries(profileDiff.getStackDeltas(), true);
+    exit();
+  }
+
+  /**
+   * Prints the biggest regressions, stacks are truncated to their innermost frames.
+   *
+   * @param entries
+   * @param stacks
+   */
+  private void printEntries(List<ProfileDiff.Entry> entries, boolean stacks) {
+    int nameWidth = Math.max(10, width - 40);
+    for (ProfileDiff.Entry entry
+        : entries.subList(0, Math.min(DISPLAYED_ENTRIES, entries.size()))) {
+      if (entry.getDeltaRate() <= 0) {
+        break;
+      }
+      String name = stacks ? rightStr(entry.getName(), nameWidth)
+          : leftStr(entry.getName() + "()", nameWidth);
+      System.out.printf(" %+8.2f %8.2f %8.2f %+7.2f%%  %s%n", entry.getDeltaRate(),
+          entry.getAfterRate(), entry.getBeforeRate(), entry.getDeltaShare() * 100, name);
+    }
+  }
+}
@@ -17,11 +17,15 @@
  */
 package com.jvmtop.view;
 
+import com.jvmtop.monitor.DeadlockDetector;
 import com.jvmtop.monitor.VMInfo;
+import com.jvmtop.monitor.VMInfoPoller;
 import com.jvmtop.monitor.VMInfoState;
+import com.jvmtop.monitor.VMMetadata;
 import com.jvmtop.openjdk.tools.LocalVirtualMachine;
 
 import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.util.*;
 
 /**
@@ -37,6 +41,10 @@ public class VMDetailView extends AbstractConsoleView {
   private int numberOfDisplayedThreads = 10;
   private int threadNameDisplayWidth = 30;
   private boolean displayedThreadLimit = true;
+  private long pollTimeoutMillis = VMInfoPoller.DEFAULT_DEADLINE_MILLIS;
+  private VMInfoPoller poller = new VMInfoPoller(1);
+  private long deadlockIntervalMillis = DeadlockDetector.DEFAULT_INTERVAL_MILLIS;
+  private DeadlockDetector deadlockDetector;
 
   //TODO: refactor
   private Map<Long, Long> previousThreadCPUMillis = new HashMap<>();
@@ -56,22 +64,54 @@ public class VMDetailView extends AbstractConsoleView {
     this.sortByTotalCPU = sortByTotalCPU;
   }
 
+  public long getPollTimeoutMillis() {
+    return pollTimeoutMillis;
+  }
+
+  public void setPollTimeoutMillis(long pollTimeoutMillis) {
+    this.pollTimeoutMillis = pollTimeoutMillis;
+  }
+
+  public long getDeadlockIntervalMillis() {
+    return deadlockIntervalMillis;
+  }
+
+  public void setDeadlockIntervalMillis(long deadlockIntervalMillis) {
+    this.deadlockIntervalMillis = deadlockIntervalMillis;
+  }
+
   @Override
   public void printView() throws Exception {
-    vmInfo.update();
+    poller.updateAll(Collections.singletonList(vmInfo), pollTimeoutMillis);
+    if (deadlockDetector == null) {
+      deadlockDetector = new DeadlockDetector(deadlockIntervalMillis);
+      deadlockDetector.watch(vmInfo);
+    }
 
-    if (vmInfo.getState() == VMInfoState.ATTACHED_UPDATE_ERROR) {
+    if (vmInfo.getState() == VMInfoState.DETACHED) {
       System.out.println("ERROR: Could not fetch telemetries - Process terminated?");
       exit();
       return;
     }
+    if (vmInfo.getState() == VMInfoState.ATTACHED_UPDATE_ERROR) {
+      System.out.printf(
+          "ERROR: Could not fetch telemetries (%d failed attempts) - Process terminated?%n",
+          vmInfo.getUpdateErrorCount());
+      return;
+    }
     if (vmInfo.getState() != VMInfoState.ATTACHED) {
       System.out.println("ERROR: Could not attach to process.");
       exit();
       return;
     }
 
-    Map<String, String> properties = vmInfo.getSystemProperties();
+    VMMetadata metadata = vmInfo.getMetadata();
+    if (metadata == null) {
+      // no update succeeded yet
+      System.out.println("Waiting for the first update...");
+      return;
+    }
+    Map<String, String> properties = metadata.getSystemProperties();
 
     String command = properties.get("sun.java.command");
     if (command != null) {
@@ -93,7 +133,7 @@ public class VMDetailView extends AbstractConsoleView {
       System.out.printf(" ARGS: [UNKNOWN] %n");
     }
 
-    String join = join(vmInfo.getRuntimeMXBean().getInputArguments(), " ");
+    String join = join(metadata.getInputArguments(), " ");
     if (join.length() > 65) {
       System.out.printf(" VMARGS: %s[...]%n", leftStr(join, 65));
     } else {
@@ -104,10 +144,9 @@ public class VMDetailView extends AbstractConsoleView {
         properties.get("java.vm.name"), properties.get("java.version"));
     System.out.printf(
         " UP: %-7s #THR: %-4d #THRPEAK: %-4d #THRCREATED: %-4d USER: %-12s%n",
-        toHHMM(vmInfo.getRuntimeMXBean().getUptime()), vmInfo
-            .getThreadCount(), vmInfo.getThreadMXBean().getPeakThreadCount(),
-        vmInfo.getThreadMXBean().getTotalStartedThreadCount(), vmInfo
-            .getOSUser());
+        toHHMM(vmInfo.getUptime()), vmInfo.getThreadCount(),
+        vmInfo.getPeakThreadCount(), vmInfo.getTotalStartedThreadCount(),
+        metadata.getOSUser());
 
     System.out.printf(
         " GC-Time: %-7s  #GC-Runs: %-8d  #TotalLoadedClasses: %-8d%n",
@@ -120,8 +159,20 @@ public class VMDetailView extends AbstractConsoleView {
         toMB(vmInfo.getHeapUsed()), toMB(vmInfo.getHeapMax()),
         toMB(vmInfo.getNonHeapUsed()), toMB(vmInfo.getNonHeapMax()));
 
+    if (vmInfo.hasDeadlockThreads()) {
+      System.out.println(" DEADLOCK DETECTED!");
+    }
+
     System.out.println();
 
+    if (vmInfo.isUpdatePending()) {
+      // fetching thread metrics would block until the jvm responds again
+      System.out.printf(
+          " STALE: jvm did not respond in time, values are %ds old%n",
+          vmInfo.getSnapshotAge() / 1000);
+      return;
+    }
+
     printTopThreads();
   }
 
@@ -133,15 +184,24 @@ public class VMDetailView extends AbstractConsoleView {
             + "s  %13s %8s    %8s %5s %n", "TID", "NAME", "STATE", "CPU",
         "TOTALCPU", "BLOCKEDBY");
 
-    if (vmInfo.getThreadMXBean().isThreadCpuTimeSupported()) {
+    ThreadMXBean threadMXBean = vmInfo.getThreadMXBean();
+    if (threadMXBean.isThreadCpuTimeSupported()) {
 
       //TODO: move this into VMInfo?
       Map<Long, Long> newThreadCPUMillis = new HashMap<>();
 
       Map<Long, Long> cpuTimeMap = new TreeMap<>();
 
-      for (Long tid : vmInfo.getThreadMXBean().getAllThreadIds()) {
-        long threadCpuTime = vmInfo.getThreadMXBean().getThreadCpuTime(tid);
+      // a constant number of round-trips per refresh, regardless of the number of threads
+      long[] tids = threadMXBean.getAllThreadIds();
+      long[] threadCpuTimes = vmInfo.getThreadCpuTimes(tids);
+      for (int i = 0; i < tids.length; i++) {
+        long tid = tids[i];
+        long threadCpuTime = threadCpuTimes[i];
+        if (threadCpuTime < 0) {
+          // thread terminated in the meantime
+          continue;
+        }
         long deltaThreadCpuTime = 0;
         if (previousThreadCPUMillis.containsKey(tid)) {
           deltaThreadCpuTime = threadCpuTime - previousThreadCPUMillis.get(tid);
@@ -153,14 +213,24 @@ public class VMDetailView extends AbstractConsoleView {
 
       cpuTimeMap = sortByValue(cpuTimeMap, true);
 
-      int displayedThreads = 0;
+      List<Long> displayedTids = new ArrayList<>();
       for (Long tid : cpuTimeMap.keySet()) {
-        ThreadInfo info = vmInfo.getThreadMXBean().getThreadInfo(tid);
-        displayedThreads++;
-        if (displayedThreads > numberOfDisplayedThreads
+        if (displayedTids.size() >= numberOfDisplayedThreads
             && displayedThreadLimit) {
           break;
         }
+        displayedTids.add(tid);
+      }
+      long[] displayedTidArray = new long[displayedTids.size()];
+      for (int i = 0; i < displayedTidArray.length; i++) {
+        displayedTidArray[i] = displayedTids.get(i);
+      }
+      ThreadInfo[] infos = threadMXBean.getThreadInfo(displayedTidArray, 0);
+      long processCpuTime = vmInfo.getProxyClient().getProcessCpuTime();
+
+      for (int i = 0; i < infos.length; i++) {
+        ThreadInfo info = infos[i];
+        long tid = displayedTidArray[i];
         if (info != null) {
           System.out.printf(
               " %6d %-" + threadNameDisplayWidth
@@ -170,9 +240,8 @@ public class VMDetailView extends AbstractConsoleView {
               info.getThreadState(),
               getThreadCPUUtilization(cpuTimeMap.get(tid),
                   vmInfo.getDeltaUptime()),
-              getThreadCPUUtilization(vmInfo.getThreadMXBean()
-                  .getThreadCpuTime(tid), vmInfo.getProxyClient()
-                  .getProcessCpuTime(), 1), getBlockedThread(info));
+              getThreadCPUUtilization(newThreadCPUMillis.get(tid),
+                  processCpuTime, 1), getBlockedThread(info));
         }
       }
       if (newThreadCPUMillis.size() >= numberOfDisplayedThreads
@@ -17,32 +17,106 @@
  */
 package com.jvmtop.view;
 
+import com.jvmtop.monitor.DeadlockDetector;
+import com.jvmtop.monitor.VMAttachPipeline;
+import com.jvmtop.monitor.VMDiscoveryService;
 import com.jvmtop.monitor.VMInfo;
+import com.jvmtop.monitor.VMInfoPoller;
 import com.jvmtop.monitor.VMInfoState;
 import com.jvmtop.openjdk.tools.LocalVirtualMachine;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 /**
  * "overview" view, providing the most-important metrics of all accessible jvms in a top-like manner.
  *
  * @author paru
  */
-public class VMOverviewView extends AbstractConsoleView {
+public class VMOverviewView extends AbstractConsoleView
+    implements VMDiscoveryService.Listener {
 
   private List<VMInfo> vmInfoList = new ArrayList<>();
-  private Map<Integer, LocalVirtualMachine> vmMap = new HashMap<>();
+  private VMDiscoveryService discoveryService;
+  private int pollThreads = VMInfoPoller.DEFAULT_CONCURRENCY;
+  private long pollTimeoutMillis = VMInfoPoller.DEFAULT_DEADLINE_MILLIS;
+  private VMInfoPoller poller;
+  private int attachThreads = VMAttachPipeline.DEFAULT_CONCURRENCY;
+  private VMAttachPipeline attachPipeline;
+  private boolean perfDataMode = false;
+  private boolean deadlockDetection = true;
+  private long deadlockIntervalMillis = DeadlockDetector.DEFAULT_INTERVAL_MILLIS;
+  private DeadlockDetector deadlockDetector;
 
   public VMOverviewView(Integer width) {
     super(width);
   }
 
+  public int getPollThreads() {
+    return pollThreads;
+  }
+
+  public void setPollThreads(int pollThreads) {
+    this.pollThreads = pollThreads;
+  }
+
+  public int getAttachThreads() {
+    return attachThreads;
+  }
+
+  public void setAttachThreads(int attachThreads) {
+    this.attachThreads = attachThreads;
+  }
+
+  public boolean isPerfDataMode() {
+    return perfDataMode;
+  }
+
+  /**
+   * If enabled, metrics are read from the hsperfdata files of the jvms instead of attaching to them.
+   * Jvms without a readable perfdata file are still attached to.
+   */
+  public void setPerfDataMode(boolean perfDataMode) {
+    this.perfDataMode = perfDataMode;
+  }
+
+  public boolean isDeadlockDetection() {
+    return deadlockDetection;
+  }
+
+  /**
+   * If disabled, the DL column stays empty and no jvm is searched for deadlocks.
+   */
+  public void setDeadlockDetection(boolean deadlockDetection) {
+    this.deadlockDetection = deadlockDetection;
+  }
+
+  public long getDeadlockIntervalMillis() {
+    return deadlockIntervalMillis;
+  }
+
+  public void setDeadlockIntervalMillis(long deadlockIntervalMillis) {
+    this.deadlockIntervalMillis = deadlockIntervalMillis;
+  }
+
+  public long getPollTimeoutMillis() {
+    return pollTimeoutMillis;
+  }
+
+  public void setPollTimeoutMillis(long pollTimeoutMillis) {
+    this.pollTimeoutMillis = pollTimeoutMillis;
+  }
+
   public void printView() throws Exception {
     printHeader();
 
-    //to reduce cpu effort, scan only every 5 iterations for new vms
-    scanForNewVMs();
+    //to reduce cpu effort, jvms are discovered by watching their perfdata files
+    if (discoveryService == null) {
+      discoveryService = new VMDiscoveryService();
+    }
+    discoveryService.poll(this);
+
+    collectAttachedVMs();
+    retryFailedAttaches();
 
     updateVMs(vmInfoList);
 
@@ -51,6 +125,9 @@ public class VMOverviewView extends AbstractConsoleView {
     for (VMInfo vmInfo : vmInfoList) {
       if (vmInfo.getState() == VMInfoState.ATTACHED) {
         printVM(vmInfo);
+      } else if (vmInfo.getState() == VMInfoState.ATTACHING) {
+        System.out.printf("%5d %-15.15s [ATTACHING...] %n",
+            vmInfo.getId(), getEntryPointClass(vmInfo.getDisplayName()));
       } else if (vmInfo.getState() == VMInfoState.ATTACHED_UPDATE_ERROR) {
         System.out.printf(
             "%5d %-15.15s [ERROR: Could not fetch telemetries (Process DEAD?)] %n",
@@ -88,40 +165,128 @@ public class VMOverviewView extends AbstractConsoleView {
     }
 
     System.out.printf(
-        "%5d %-15.15s %5s %5s %5s %5s %5.2f%% %5.2f%% %-5.5s %8.8s %4d %2.2s%n",
+        "%5d %-15.15s %5s %5s %5s %5s %6s %5.2f%% %-5.5s %8.8s %4d %2.2s",
         vmInfo.getId(), getEntryPointClass(vmInfo.getDisplayName()),
         toMB(vmInfo.getHeapUsed()), toMB(vmInfo.getHeapMax()),
         toMB(vmInfo.getNonHeapUsed()), toMB(vmInfo.getNonHeapMax()),
-        vmInfo.getCpuLoad() * 100, vmInfo.getGcLoad() * 100,
+        toPercent(vmInfo.getCpuLoad()), vmInfo.getGcLoad() * 100,
         vmInfo.getVMVersion(), vmInfo.getOSUser(), vmInfo.getThreadCount(),
         deadlockState);
 
+    if (vmInfo.isUpdatePending()) {
+      System.out.printf(" STALE %ds", vmInfo.getSnapshotAge() / 1000);
+    }
+    System.out.println();
+  }
+
+  /**
+   * Formats a load value as percentage, or "n/a" if the value is unknown (negative).
+   *
+   * @param load
+   * @return
+   */
+  private String toPercent(double load) {
+    if (load < 0) {
+      return "n/a";
+    }
+    return String.format("%5.2f%%", load * 100);
   }
 
   /**
+   * Updates all jvms in parallel and waits until all of them are done
+   * or missed the poll deadline.
+   *
    * @param vmList
+   * @throws InterruptedException
    */
-  private void updateVMs(List<VMInfo> vmList) {
-    for (VMInfo vmInfo : vmList) {
-      vmInfo.update();
+  private void updateVMs(List<VMInfo> vmList) throws InterruptedException {
+    if (poller == null) {
+      poller = new VMInfoPoller(pollThreads);
     }
+    poller.updateAll(vmList, pollTimeoutMillis);
   }
 
-  private void scanForNewVMs() {
-    Map<Integer, LocalVirtualMachine> machines = LocalVirtualMachine
-        .getNewVirtualMachines(vmMap);
-    Set<Entry<Integer, LocalVirtualMachine>> set = machines.entrySet();
+  @Override
+  public void vmAppeared(LocalVirtualMachine localvm) {
+    int vmid = localvm.vmid();
+    VMInfo vmInfo = null;
+    if (perfDataMode) {
+      vmInfo = VMInfo.openPerfDataVM(localvm, vmid);
+    }
+    if (vmInfo == null) {
+      vmInfo = getAttachPipeline().submit(localvm);
+    }
+    vmInfoList.add(vmInfo);
+  }
 
-    for (Entry<Integer, LocalVirtualMachine> entry : set) {
-      LocalVirtualMachine localvm = entry.getValue();
-      int vmid = localvm.vmid();
+  @Override
+  public void vmDisappeared(int vmid) {
+    for (Iterator<VMInfo> it = vmInfoList.iterator(); it.hasNext(); ) {
+      VMInfo vmInfo = it.next();
+      if (vmInfo.getId() == vmid) {
+        it.remove();
+        if (deadlockDetector != null) {
+          deadlockDetector.unwatch(vmInfo);
+        }
+        if (poller != null) {
+          poller.cancel(vmInfo);
+        }
+        if (vmInfo.getProxyClient() != null) {
+          vmInfo.getProxyClient().disconnect();
+        }
+      }
+    }
+  }
 
-      if (!vmMap.containsKey(vmid)) {
-        VMInfo vmInfo = VMInfo.processNewVM(localvm, vmid);
-        vmInfoList.add(vmInfo);
+  /**
+   * Replaces the placeholders of all jvms whose attach has been finished in the meantime.
+   * Results for jvms which disappeared during the attach are dropped and disconnected.
+   */
+  private void collectAttachedVMs() {
+    for (VMInfo attachedVM : getAttachPipeline().drainAttachedVMs()) {
+      boolean found = false;
+      for (int i = 0; i < vmInfoList.size(); i++) {
+        if (vmInfoList.get(i).getId().equals(attachedVM.getId())) {
+          vmInfoList.set(i, attachedVM);
+          if (deadlockDetection && attachedVM.getState() == VMInfoState.ATTACHED) {
+            getDeadlockDetector().watch(attachedVM);
+          }
+          found = true;
+          break;
+        }
+      }
+      if (!found && attachedVM.getProxyClient() != null) {
+        attachedVM.getProxyClient().disconnect();
+      }
+    }
+  }
+
+  /**
+   * Attaches once more to all jvms which were not attachable so far,
+   * as soon as their retry delay has passed.
+   */
+  private void retryFailedAttaches() {
+    for (int i = 0; i < vmInfoList.size(); i++) {
+      VMInfo vmInfo = vmInfoList.get(i);
+      if (vmInfo.getState() == VMInfoState.ERROR_DURING_ATTACH && vmInfo.getLocalVm() != null
+          && LocalVirtualMachine.isAttachRetryDue(vmInfo.getLocalVm())) {
+        vmInfoList.set(i, getAttachPipeline().resubmit(vmInfo.getLocalVm()));
       }
     }
-    vmMap = machines;
+  }
+
+  private DeadlockDetector getDeadlockDetector() {
+    if (deadlockDetector == null) {
+      deadlockDetector = new DeadlockDetector(deadlockIntervalMillis);
+    }
+    return deadlockDetector;
+  }
+
+  private VMAttachPipeline getAttachPipeline() {
+    if (attachPipeline == null) {
+      attachPipeline = new VMAttachPipeline(attachThreads);
+    }
+    return attachPipeline;
   }
 
   private void printHeader() {
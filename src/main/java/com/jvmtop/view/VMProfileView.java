@@ -20,8 +20,21 @@ package com.jvmtop.view;
 import com.jvmtop.monitor.VMInfo;
 import com.jvmtop.monitor.VMInfoState;
 import com.jvmtop.openjdk.tools.LocalVirtualMachine;
+import com.jvmtop.profiler.AttachStackSource;
 import com.jvmtop.profiler.CPUSampler;
+import com.jvmtop.profiler.CallTree;
+import com.jvmtop.profiler.GroupStats;
+import com.jvmtop.profiler.LineStats;
 import com.jvmtop.profiler.MethodStats;
+import com.jvmtop.profiler.PackageFilter;
+import com.jvmtop.profiler.ProfileBackend;
+import com.jvmtop.profiler.ProfileExporter;
+import com.jvmtop.profiler.ProfileMode;
+import com.jvmtop.profiler.ProfileSnapshot;
+import com.jvmtop.profiler.Rollup;
+import com.jvmtop.profiler.ThreadSelector;
+
+import java.util.Map;
 
 /**
  * CPU sampling-based profiler view which shows methods with top CPU usage.
@@ -32,51 +45,356 @@ public class VMProfileView extends AbstractConsoleView {
 
   private CPUSampler cpuSampler;
 
+  private LocalVirtualMachine localVirtualMachine;
+
   private VMInfo vmInfo;
 
+  private ProfileExporter profileExporter;
+
+  private long sampleIntervalMillis = CPUSampler.DEFAULT_INTERVAL_MILLIS;
+
+  private long sampleJitterMillis = 0;
+
   public VMProfileView(int vmid, Integer width) throws Exception {
-    super(width);
-    LocalVirtualMachine localVirtualMachine =
-        LocalVirtualMachine.getLocalVirtualMachine(vmid);
-    vmInfo = VMInfo.processNewVM(localVirtualMachine, vmid);
-    cpuSampler = new CPUSampler(vmInfo);
+    this(vmid, width, ProfileBackend.JMX);
   }
 
-  @Override
-  public void sleep(long millis) throws Exception {
-    long cur = System.currentTimeMillis();
-    cpuSampler.update();
-    while (cur + millis > System.currentTimeMillis()) {
-      cpuSampler.update();
-      super.sleep(100);
+  /**
+   * Creates the view, fetching the stacks with the given backend.
+   * The attach backend does not load the JMX management agent into the jvm.
+   */
+  public VMProfileView(int vmid, Integer width, ProfileBackend backend) throws Exception {
+    super(width);
+    localVirtualMachine = LocalVirtualMachine.getLocalVirtualMachine(vmid);
+    if (backend == ProfileBackend.ATTACH) {
+      cpuSampler = new CPUSampler(new AttachStackSource(vmid));
+    } else {
+      vmInfo = VMInfo.processNewVM(localVirtualMachine, vmid);
+      cpuSampler = new CPUSampler(vmInfo);
     }
+    profileExporter = new ProfileExporter(cpuSampler,
+        "jvmtop profile of PID " + vmid);
+  }
+
+  /**
+   * Returns the exporter which writes the profile to files (e.g. folded stacks or a flame graph).
+   */
+  public ProfileExporter getProfileExporter() {
+    return profileExporter;
+  }
+
+  public long getSampleIntervalMillis() {
+    return sampleIntervalMillis;
+  }
+
+  public void setSampleIntervalMillis(long sampleIntervalMillis) {
+    this.sampleIntervalMillis = sampleIntervalMillis;
+  }
+
+  public boolean isCallTreeMode() {
+    return cpuSampler.isCallTreeEnabled();
+  }
+
+  /**
+   * If enabled, the hottest call paths are shown instead of the flat method list.
+   */
+  public void setCallTreeMode(boolean callTreeMode) {
+    cpuSampler.setCallTreeEnabled(callTreeMode);
+  }
+
+  public ProfileMode getProfileMode() {
+    return cpuSampler.getProfileMode();
+  }
+
+  /**
+   * Sets which threads are profiled: running (CPU time), all, blocked or waiting threads.
+   */
+  public void setProfileMode(ProfileMode profileMode) {
+    cpuSampler.setProfileMode(profileMode);
+  }
+
+  public Rollup getRollup() {
+    return cpuSampler.getRollup();
+  }
+
+  /**
+   * If set, the time is shown summed up per class or package instead of per method.
+   *
+   * @param rollup
+   * @param prefix shows only classes or packages starting with this prefix (drill-down), null for all
+   */
+  public void setRollup(Rollup rollup, String prefix) {
+    cpuSampler.setRollup(rollup, prefix);
+  }
+
+  public boolean isLineMode() {
+    return cpuSampler.isLineStatsEnabled();
+  }
+
+  /**
+   * If enabled, the hottest lines are shown below each method.
+   */
+  public void setLineMode(boolean lineMode) {
+    cpuSampler.setLineStatsEnabled(lineMode);
+  }
+
+  public ThreadSelector getThreadSelector() {
+    return cpuSampler.getThreadSelector();
+  }
+
+  /**
+   * Restricts the profiled threads by their names.
+   */
+  public void setThreadSelector(ThreadSelector threadSelector) {
+    cpuSampler.setThreadSelector(threadSelector);
+  }
+
+  public int getMaxDepth() {
+    return cpuSampler.getMaxDepth();
+  }
+
+  /**
+   * Limits the number of (innermost) frames fetched per stack, 0 fetches all frames.
+   */
+  public void setMaxDepth(int maxDepth) {
+    cpuSampler.setMaxDepth(maxDepth);
+  }
+
+  public int getTopK() {
+    return cpuSampler.getTopK();
+  }
+
+  /**
+   * If set, only the k heaviest methods are tracked with a fixed memory budget,
+   * their times are shown as upper bounds with the maximum error.
+   */
+  public void setTopK(int k) {
+    cpuSampler.setTopK(k);
+  }
+
+  public long getWindowMillis() {
+    return cpuSampler.getWindowMillis();
+  }
+
+  /**
+   * If set, methods are ordered by their exponentially decaying share of the given window
+   * (e.g. the last 30 seconds), which is shown next to the cumulative share.
+   */
+  public void setWindowMillis(long windowMillis) {
+    cpuSampler.setWindowMillis(windowMillis);
+  }
+
+  public PackageFilter getPackageFilter() {
+    return cpuSampler.getPackageFilter();
+  }
+
+  /**
+   * Sets the include and exclude rules of the profiled classes.
+   */
+  public void setPackageFilter(PackageFilter packageFilter) {
+    cpuSampler.setPackageFilter(packageFilter);
+  }
+
+  public long getSampleJitterMillis() {
+    return sampleJitterMillis;
+  }
+
+  public void setSampleJitterMillis(long sampleJitterMillis) {
+    this.sampleJitterMillis = sampleJitterMillis;
   }
 
   @Override
   public void printView() throws Exception {
-    if (vmInfo.getState() == VMInfoState.ATTACHED_UPDATE_ERROR) {
+    if (vmInfo != null && vmInfo.getState() == VMInfoState.ATTACHED_UPDATE_ERROR) {
       System.out.println("ERROR: Could not fetch telemetries - Process terminated?");
       exit();
       return;
     }
-    if (vmInfo.getState() != VMInfoState.ATTACHED) {
+    if (vmInfo != null && vmInfo.getState() != VMInfoState.ATTACHED) {
       System.out.println("ERROR: Could not attach to process.");
       exit();
       return;
     }
 
+    // sampling runs on its own thread, independent of the refresh delay
+    cpuSampler.start(sampleIntervalMillis, sampleJitterMillis);
+    profileExporter.start();
+    profileExporter.exportInterval();
+    ProfileSnapshot snapshot = cpuSampler.snapshot(20);
+
     int w = width - 40;
-    System.out.printf(" Profiling PID %d: %40s %n%n",
-        vmInfo.getId(), leftStr(vmInfo.getDisplayName(), w));
+    System.out.printf(" Profiling PID %d: %40s %n",
+        localVirtualMachine.vmid(), leftStr(localVirtualMachine.displayName(), w));
+    System.out.printf(" Remote calls per sample: %d  Distinct stacks: %d%n",
+        snapshot.getSampleRoundTrips(), snapshot.getStackCount());
+    printStateTimes(snapshot);
+
+    if (cpuSampler.isCallTreeEnabled()) {
+      printCallTree(snapshot);
+      return;
+    }
+
+    if (cpuSampler.getRollup() != null) {
+      printRollup(snapshot);
+      return;
+    }
+    if (snapshot.getWindowNanos() > 0) {
+      printRecentMethods(snapshot);
+      return;
+    }
+    if (cpuSampler.getTopK() > 0) {
+      printApproximatedMethods(snapshot);
+      return;
+    }
 
-    for (MethodStats stats : cpuSampler.getTop(20)) {
-      double wallRatio = (double) stats.getHits().get() / cpuSampler.getTotal() * 100;
+    for (MethodStats stats : snapshot.getTopMethods()) {
+      double wallRatio = (double) stats.getHits().get() / snapshot.getTotalCpuTime() * 100;
       if (!Double.isNaN(wallRatio)) {
-        double sampleTime = wallRatio / 100d * cpuSampler.getUpdateCount() * 0.1d;
+        double sampleTime = toSeconds(snapshot, stats.getHits().get());
         String qualifiedMethodName = stats.getClassName() + "." + stats.getMethodName();
         System.out.printf(" %6.2f%% (%9.2fs) %s()%n",
             wallRatio, sampleTime, qualifiedMethodName);
+        printLines(snapshot, stats, false);
+      }
+    }
+  }
+
+  /**
+   * Prints the hottest lines of a method (if line mode is enabled).
+   *
+   * @param snapshot
+   * @param stats
+   * @param recentColumn leaves the RECENT column of the window mode empty
+   */
+  private void printLines(ProfileSnapshot snapshot, MethodStats stats, boolean recentColumn) {
+    for (LineStats line : stats.getLines()) {
+      double lineRatio = (double) line.getHits() / snapshot.getTotalCpuTime() * 100;
+      String lineNumber = line.getLineNumber() >= 0 ? Integer.toString(line.getLineNumber())
+          : line.getLineNumber() == -2 ? "native" : "?";
+      if (recentColumn) {
+        System.out.printf(" %7s %6.2f%% (%8.2fs)     line %s%n",
+            "", lineRatio, toSeconds(snapshot, line.getHits()), lineNumber);
+      } else {
+        System.out.printf(" %6.2f%% (%9.2fs)     line %s%n",
+            lineRatio, toSeconds(snapshot, line.getHits()), lineNumber);
       }
     }
   }
+
+  /**
+   * Prints the classes or packages with the highest time.
+   *
+   * @param snapshot
+   */
+  private void printRollup(ProfileSnapshot snapshot) {
+    if (snapshot.getTotalCpuTime() <= 0) {
+      return;
+    }
+    Rollup rollup = cpuSampler.getRollup();
+    System.out.printf(" %7s %11s  %s%n", "TOTAL", "TOTALTIME",
+        rollup.getLevel() == Rollup.Level.CLASS ? "CLASS"
+            : String.format("PACKAGE (depth %d)", rollup.getPackageDepth()));
+    for (GroupStats group : snapshot.getRollupEntries()) {
+      double totalRatio = (double) group.getHits() / snapshot.getTotalCpuTime() * 100;
+      System.out.printf(" %6.2f%% (%8.2fs) %s%n", totalRatio,
+          toSeconds(snapshot, group.getHits()),
+          group.getName().isEmpty() ? "(default package)" : group.getName());
+    }
+  }
+
+  /**
+   * Prints the methods of the top-k mode with their maximum error.
+   *
+   * @param snapshot
+   */
+  private void printApproximatedMethods(ProfileSnapshot snapshot) {
+    if (snapshot.getTotalCpuTime() <= 0) {
+      return;
+    }
+    System.out.printf(" %7s %8s %11s  %s%n", "TOTAL", "ERROR", "TOTALTIME",
+        String.format("METHOD (top-%d sketch, upper bounds)", cpuSampler.getTopK()));
+    for (MethodStats stats : snapshot.getTopMethods()) {
+      double totalRatio = (double) stats.getHits().get() / snapshot.getTotalCpuTime() * 100;
+      double errorRatio = (double) stats.getError() / snapshot.getTotalCpuTime() * 100;
+      String qualifiedMethodName = stats.getClassName() + "." + stats.getMethodName();
+      System.out.printf(" %6.2f%% +-%5.2f%% (%8.2fs) %s()%n",
+          totalRatio, errorRatio, toSeconds(snapshot, stats.getHits().get()),
+          qualifiedMethodName);
+    }
+  }
+
+  /**
+   * Prints the methods with their share of the decaying window, followed by their cumulative share.
+   *
+   * @param snapshot
+   */
+  private void printRecentMethods(ProfileSnapshot snapshot) {
+    if (snapshot.getTotalCpuTime() <= 0) {
+      return;
+    }
+    System.out.printf(" %7s %7s %11s  %s%n", "RECENT", "TOTAL", "TOTALTIME",
+        String.format("METHOD (window: %.0fs)", snapshot.getWindowNanos() / 1e9));
+    for (MethodStats stats : snapshot.getTopMethods()) {
+      double recentRatio = snapshot.getRecentTotalTime() > 0
+          ? stats.getRecentHits() / snapshot.getRecentTotalTime() * 100 : 0;
+      double totalRatio = (double) stats.getHits().get() / snapshot.getTotalCpuTime() * 100;
+      String qualifiedMethodName = stats.getClassName() + "." + stats.getMethodName();
+      System.out.printf(" %6.2f%% %6.2f%% (%8.2fs) %s()%n",
+          recentRatio, totalRatio, toSeconds(snapshot, stats.getHits().get()),
+          qualifiedMethodName);
+      printLines(snapshot, stats, true);
+    }
+  }
+
+  /**
+   * Prints the profile mode and the share of each thread state of all threads.
+   *
+   * @param snapshot
+   */
+  private void printStateTimes(ProfileSnapshot snapshot) {
+    long total = 0;
+    for (long time : snapshot.getStateTimes().values()) {
+      total += time;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Long> entry : snapshot.getStateTimes().entrySet()) {
+      sb.append(String.format("  %s %.1f%%", entry.getKey(), (double) entry.getValue() / total * 100));
+    }
+    System.out.printf(" Mode: %s%n Thread states:%s%n%n", snapshot.getProfileMode().getName(),
+        leftStr(sb.toString(), Math.max(1, width - 16)));
+  }
+
+  /**
+   * Converts a sampled time to seconds: in CPU mode as share of the sampled wall-clock time,
+   * otherwise as the summed up time of the sampled threads.
+   */
+  private double toSeconds(ProfileSnapshot snapshot, long time) {
+    if (snapshot.getProfileMode().isCpuTime()) {
+      return (double) time / snapshot.getTotalCpuTime() * snapshot.getSampledTimeNanos() / 1e9;
+    }
+    return time / 1e9;
+  }
+
+  /**
+   * Prints the hottest call paths, each method indented below its caller.
+   *
+   * @param snapshot
+   */
+  private void printCallTree(ProfileSnapshot snapshot) {
+    long total = snapshot.getTotalCpuTime();
+    if (total <= 0) {
+      return;
+    }
+    System.out.printf(" %7s %7s %11s  %s%n", "TOTAL", "SELF", "TOTALTIME", "METHOD");
+    for (CallTree.Entry entry : snapshot.getCallTreeEntries()) {
+      double totalRatio = (double) entry.getTotalTime() / total * 100;
+      double selfRatio = (double) entry.getSelfTime() / total * 100;
+      double totalTime = toSeconds(snapshot, entry.getTotalTime());
+      String indent = leftStr(String.format("%" + (entry.getDepth() * 2 + 1) + "s", ""),
+          Math.max(1, width - 40));
+      String qualifiedMethodName = entry.getClassName() + "." + entry.getMethodName();
+      System.out.printf(" %6.2f%% %6.2f%% (%8.2fs)%s%s()%n",
+          totalRatio, selfRatio, totalTime, indent, qualifiedMethodName);
+    }
+  }
 }